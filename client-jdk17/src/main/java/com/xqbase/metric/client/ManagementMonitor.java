@@ -5,18 +5,29 @@ import java.lang.management.GarbageCollectorMXBean;
 import java.lang.management.ManagementFactory;
 import java.lang.management.MemoryMXBean;
 import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
 import java.lang.management.MemoryUsage;
+import java.lang.management.ThreadInfo;
 import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 
 import javax.management.ListenerNotFoundException;
 import javax.management.Notification;
 import javax.management.NotificationBroadcaster;
 import javax.management.NotificationListener;
+import javax.management.openmbean.CompositeData;
 
+import com.sun.management.GarbageCollectionNotificationInfo;
+import com.sun.management.GcInfo;
 import com.sun.management.OperatingSystemMXBean;
+import com.sun.management.UnixOperatingSystemMXBean;
 import com.xqbase.metric.common.Metric;
 import com.xqbase.metric.common.MetricKey;
 
@@ -37,6 +48,18 @@ public class ManagementMonitor implements Runnable, AutoCloseable {
 
 	private String cpu, threads, memoryMB, memoryPercent;
 	private String memoryPoolMB, memoryPoolPercent;
+	private String threadCpu, threadAllocation;
+	private String gcTime, gcReclaimed, gcPromoted, gcAllocation;
+	private Set<String> heapPools = new HashSet<>();
+	// Heap used after the last pause (or cycle, see "cycles") and its end time since the JVM started
+	private long lastHeapAfter = 0, lastGcEnd = -1;
+	// ZGC and Shenandoah reclaim the heap in cycles rather than in pauses
+	private boolean cycles = false;
+	private String cgroupThrottled, cgroupOomKills, fileDescriptors;
+	private int topThreads = 0;
+	// Thread id -> {cpu time, allocated bytes} of the last run, -1 if not supported
+	private Map<Long, long[]> lastThreadTimes = null;
+	private long lastThreadSample = 0;
 	private Map<String, String> tagMap;
 	private ThreadMXBean thread = ManagementFactory.getThreadMXBean();
 	private MemoryMXBean memory = ManagementFactory.getMemoryMXBean();
@@ -47,6 +70,11 @@ public class ManagementMonitor implements Runnable, AutoCloseable {
 	private OperatingSystemMXBean os = null;
 	private Map<NotificationBroadcaster, NotificationListener>
 			gcListeners = new HashMap<>();
+	// Null if not in a cgroup, then only the MXBeans are reported
+	private CgroupReader cgroup = CgroupReader.open();
+	private long[] cgroupValues = new long[CgroupReader.VALUES];
+	private long[] lastCgroupValues = new long[CgroupReader.VALUES];
+	private long lastCgroupSample = 0;
 
 	void put(String name, double value, String... tagPairs) {
 		Map<String, String> tagMap_ = new HashMap<>(tagMap);
@@ -65,6 +93,11 @@ public class ManagementMonitor implements Runnable, AutoCloseable {
 		memoryPercent = prefix + ".memory.percent";
 		memoryPoolMB = prefix + ".memory_pool.mb";
 		memoryPoolPercent = prefix + ".memory_pool.percent";
+		threadCpu = prefix + ".thread.cpu";
+		threadAllocation = prefix + ".thread.allocation.mb_per_second";
+		cgroupThrottled = prefix + ".cgroup.throttled";
+		cgroupOomKills = prefix + ".cgroup.oom_kills";
+		fileDescriptors = prefix + ".file_descriptors";
 		java.lang.management.OperatingSystemMXBean os_ =
 				ManagementFactory.getOperatingSystemMXBean();
 		if (os_ instanceof OperatingSystemMXBean) {
@@ -72,30 +105,265 @@ public class ManagementMonitor implements Runnable, AutoCloseable {
 		}
 		this.tagMap = tagMap;
 
-		final String gc = prefix + ".gc.time";
-		for (final GarbageCollectorMXBean gcBean :
+		gcTime = prefix + ".gc.time";
+		gcReclaimed = prefix + ".gc.reclaimed.mb";
+		gcPromoted = prefix + ".gc.promoted.mb";
+		gcAllocation = prefix + ".gc.allocation.mb_per_second";
+		for (MemoryPoolMXBean memoryPool : memoryPools) {
+			if (memoryPool.getType() == MemoryType.HEAP) {
+				heapPools.add(memoryPool.getName());
+			}
+		}
+		NotificationListener listener = new NotificationListener() {
+			@Override
+			public void handleNotification(Notification notification, Object handback) {
+				putGc(notification);
+			}
+		};
+		for (GarbageCollectorMXBean gcBean :
 				ManagementFactory.getGarbageCollectorMXBeans()) {
+			if (gcBean.getName().contains("Cycles")) {
+				cycles = true;
+			}
 			if (!(gcBean instanceof NotificationBroadcaster)) {
 				continue;
 			}
-			final String gcName = gcBean.getName();
-			NotificationListener listener = new NotificationListener() {
-				@Override
-				public void handleNotification(Notification notification, Object handback) {
-					if (gcBean instanceof com.sun.management.GarbageCollectorMXBean) {
-						put(gc, ((com.sun.management.GarbageCollectorMXBean) gcBean).
-								getLastGcInfo().getDuration(), "name", gcName);
-					}
-				}
-			};
 			NotificationBroadcaster broadcaster = ((NotificationBroadcaster) gcBean);
 			broadcaster.addNotificationListener(listener, null, null);
 			gcListeners.put(broadcaster, listener);
 		}
 	}
 
+	// Cycles of ZGC and Shenandoah, and CMS, run mostly along with the application
+	private static boolean isConcurrent(String gcName, String gcAction) {
+		return gcAction.contains("cycle") || gcName.contains("Cycles") ||
+				gcName.equals("ConcurrentMarkSweep");
+	}
+
+	// Called by the notification thread of the JVM
+	private synchronized void putGc(Notification notification) {
+		if (!GarbageCollectionNotificationInfo.GARBAGE_COLLECTION_NOTIFICATION.
+				equals(notification.getType())) {
+			return;
+		}
+		GarbageCollectionNotificationInfo info = GarbageCollectionNotificationInfo.
+				from((CompositeData) notification.getUserData());
+		// Not "getLastGcInfo()" of the bean, which may be null or already a newer one
+		GcInfo gcInfo = info.getGcInfo();
+		if (gcInfo == null) {
+			return;
+		}
+		String gcName = info.getGcName();
+		boolean concurrent = isConcurrent(gcName, info.getGcAction());
+		put(gcTime, gcInfo.getDuration(), "name", gcName,
+				"type", concurrent ? "concurrent" : "pause", "cause", info.getGcCause());
+
+		Map<String, MemoryUsage> before = gcInfo.getMemoryUsageBeforeGc();
+		Map<String, MemoryUsage> after = gcInfo.getMemoryUsageAfterGc();
+		long heapBefore = 0, heapAfter = 0;
+		for (Map.Entry<String, MemoryUsage> entry : before.entrySet()) {
+			String poolName = entry.getKey();
+			MemoryUsage poolAfter = after.get(poolName);
+			if (poolAfter == null || !heapPools.contains(poolName)) {
+				continue;
+			}
+			long used = entry.getValue().getUsed();
+			long usedAfter = poolAfter.getUsed();
+			heapBefore += used;
+			heapAfter += usedAfter;
+			if (usedAfter < used) {
+				put(gcReclaimed, MB(used - usedAfter), "name", poolName, "gc", gcName);
+			} else if (usedAfter > used &&
+					(poolName.contains("Old") || poolName.contains("Tenured"))) {
+				put(gcPromoted, MB(usedAfter - used), "name", poolName, "gc", gcName);
+			}
+		}
+
+		// Between the collections that reclaim the heap, it only grows by allocation,
+		// so the rate under ZGC and Shenandoah excludes what is allocated during cycles
+		if (concurrent != cycles) {
+			return;
+		}
+		long start = gcInfo.getStartTime();
+		if (lastGcEnd >= 0 && start > lastGcEnd) {
+			put(gcAllocation, MB(Math.max(heapBefore - lastHeapAfter, 0)) *
+					1000 / (start - lastGcEnd));
+		}
+		lastHeapAfter = heapAfter;
+		lastGcEnd = gcInfo.getEndTime();
+	}
+
+	// Reports CPU and allocation of the top "topThreads" thread groups, named by threads
+	// with digits normalized, e.g. "pool-N-thread-N", 0 (default) to disable
+	public void setTopThreads(int topThreads) {
+		this.topThreads = topThreads;
+	}
+
+	private static String normalize(String name) {
+		StringBuilder sb = new StringBuilder();
+		boolean digit = false;
+		for (int i = 0; i < name.length(); i ++) {
+			char c = name.charAt(i);
+			if (c < '0' || c > '9') {
+				sb.append(c);
+				digit = false;
+			} else if (!digit) {
+				sb.append('N');
+				digit = true;
+			}
+		}
+		return sb.toString();
+	}
+
+	private void putTop(String name, Map<String, double[]> groups,
+			final int index, double scale) {
+		List<Map.Entry<String, double[]>> entries = new ArrayList<>(groups.entrySet());
+		Collections.sort(entries, new Comparator<Map.Entry<String, double[]>>() {
+			@Override
+			public int compare(Map.Entry<String, double[]> a, Map.Entry<String, double[]> b) {
+				return Double.compare(b.getValue()[index], a.getValue()[index]);
+			}
+		});
+		double other = 0;
+		for (int i = 0; i < entries.size(); i ++) {
+			double value = entries.get(i).getValue()[index] * scale;
+			if (i < topThreads) {
+				put(name, value, "name", entries.get(i).getKey());
+			} else {
+				other += value;
+			}
+		}
+		if (entries.size() > topThreads) {
+			put(name, other, "name", "__other__");
+		}
+	}
+
+	private void putThreads() {
+		long now = System.nanoTime();
+		long[] ids = thread.getAllThreadIds();
+		ThreadInfo[] infos = thread.getThreadInfo(ids);
+		long[] cpuTimes = null, allocatedBytes = null;
+		if (thread instanceof com.sun.management.ThreadMXBean) {
+			com.sun.management.ThreadMXBean thread_ = (com.sun.management.ThreadMXBean) thread;
+			if (thread_.isThreadCpuTimeSupported() && thread_.isThreadCpuTimeEnabled()) {
+				cpuTimes = thread_.getThreadCpuTime(ids);
+			}
+			if (thread_.isThreadAllocatedMemorySupported() &&
+					thread_.isThreadAllocatedMemoryEnabled()) {
+				allocatedBytes = thread_.getThreadAllocatedBytes(ids);
+			}
+		} else if (thread.isThreadCpuTimeSupported() && thread.isThreadCpuTimeEnabled()) {
+			cpuTimes = new long[ids.length];
+			for (int i = 0; i < ids.length; i ++) {
+				cpuTimes[i] = thread.getThreadCpuTime(ids[i]);
+			}
+		}
+		if (cpuTimes == null && allocatedBytes == null) {
+			return;
+		}
+
+		// Deltas since the last run, a new thread counts from its start
+		Map<Long, long[]> threadTimes = new HashMap<>();
+		Map<String, double[]> groups = new HashMap<>();
+		for (int i = 0; i < ids.length; i ++) {
+			if (infos[i] == null) {
+				// Terminated
+				continue;
+			}
+			long[] times = {cpuTimes == null ? -1 : cpuTimes[i],
+					allocatedBytes == null ? -1 : allocatedBytes[i]};
+			threadTimes.put(Long.valueOf(ids[i]), times);
+			if (lastThreadTimes == null) {
+				continue;
+			}
+			long[] lastTimes = lastThreadTimes.get(Long.valueOf(ids[i]));
+			String groupName = normalize(infos[i].getThreadName());
+			double[] group = groups.get(groupName);
+			if (group == null) {
+				group = new double[2];
+				groups.put(groupName, group);
+			}
+			for (int j = 0; j < 2; j ++) {
+				if (times[j] >= 0) {
+					group[j] += times[j] - (lastTimes == null || lastTimes[j] < 0 ?
+							0 : lastTimes[j]);
+				}
+			}
+		}
+		if (lastThreadTimes != null && now > lastThreadSample) {
+			double seconds = (now - lastThreadSample) / 1000000000d;
+			if (cpuTimes != null) {
+				// Percent of one processor
+				putTop(threadCpu, groups, 0, 100 / 1000000000d / seconds);
+			}
+			if (allocatedBytes != null) {
+				putTop(threadAllocation, groups, 1, 1 / 1048576d / seconds);
+			}
+		}
+		lastThreadTimes = threadTimes;
+		lastThreadSample = now;
+	}
+
+	private static long delta(long[] values, long[] lastValues, int index) {
+		return values[index] < 0 || lastValues[index] < 0 ? -1 :
+				Math.max(values[index] - lastValues[index], 0);
+	}
+
+	// Quota and limits of the container, which are not seen by the MXBeans
+	private void putCgroup() {
+		long now = System.nanoTime();
+		long[] values = cgroupValues;
+		cgroup.read(values);
+
+		long usage = values[CgroupReader.MEMORY_USAGE];
+		if (usage >= 0) {
+			long inactiveFile = values[CgroupReader.MEMORY_INACTIVE_FILE];
+			// Page cache which can be reclaimed is not counted
+			long workingSet = inactiveFile < 0 ? usage : Math.max(usage - inactiveFile, 0);
+			put(memoryMB, MB(usage), "type", "cgroup_usage");
+			put(memoryMB, MB(workingSet), "type", "cgroup_working_set");
+			long limit = values[CgroupReader.MEMORY_LIMIT];
+			if (limit > 0) {
+				put(memoryMB, MB(limit), "type", "cgroup_limit");
+				put(memoryPercent, PERCENT(workingSet, limit), "type", "cgroup");
+			}
+		}
+
+		long[] lastValues = lastCgroupValues;
+		if (lastCgroupSample > 0 && now > lastCgroupSample) {
+			long quota = values[CgroupReader.CPU_QUOTA];
+			long period = values[CgroupReader.CPU_PERIOD];
+			long cpuUsage = delta(values, lastValues, CgroupReader.CPU_USAGE);
+			if (quota > 0 && period > 0 && cpuUsage >= 0) {
+				// Percent of the quota, e.g. 100 means all of 2 processors if quota is 2
+				put(cpu, cpuUsage * 100d * period / quota / (now - lastCgroupSample),
+						"type", "cgroup_quota");
+			}
+			long periods = delta(values, lastValues, CgroupReader.CPU_PERIODS);
+			long throttled = delta(values, lastValues, CgroupReader.CPU_THROTTLED);
+			if (throttled >= 0) {
+				put(cgroupThrottled, throttled, "type", "periods");
+				put(cgroupThrottled, PERCENT(throttled, periods), "type", "percent");
+			}
+			long throttledTime = delta(values, lastValues, CgroupReader.CPU_THROTTLED_TIME);
+			if (throttledTime >= 0) {
+				put(cgroupThrottled, throttledTime / 1000000d, "type", "time");
+			}
+			long oomKills = delta(values, lastValues, CgroupReader.OOM_KILLS);
+			if (oomKills >= 0) {
+				put(cgroupOomKills, oomKills);
+			}
+		}
+		cgroupValues = lastValues;
+		lastCgroupValues = values;
+		lastCgroupSample = now;
+	}
+
 	@Override
 	public void run() {
+		if (topThreads > 0) {
+			putThreads();
+		}
 		put(threads, thread.getThreadCount(), "type", "total");
 		put(threads, thread.getDaemonThreadCount(), "type", "daemon");
 
@@ -144,6 +412,10 @@ public class ManagementMonitor implements Runnable, AutoCloseable {
 			}
 		}
 
+		if (cgroup != null) {
+			putCgroup();
+		}
+
 		if (os == null) {
 			return;
 		}
@@ -162,6 +434,15 @@ public class ManagementMonitor implements Runnable, AutoCloseable {
 
 		put(cpu, Math.max(os.getSystemCpuLoad() * 100, 0), "type", "system");
 		put(cpu, Math.max(os.getProcessCpuLoad() * 100, 0), "type", "process");
+
+		if (os instanceof UnixOperatingSystemMXBean) {
+			UnixOperatingSystemMXBean unix = (UnixOperatingSystemMXBean) os;
+			long open = unix.getOpenFileDescriptorCount();
+			long max = unix.getMaxFileDescriptorCount();
+			put(fileDescriptors, open, "type", "open");
+			put(fileDescriptors, max, "type", "max");
+			put(fileDescriptors, PERCENT(open, max), "type", "percent");
+		}
 	}
 
 	@Override
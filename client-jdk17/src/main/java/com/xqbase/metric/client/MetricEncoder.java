@@ -0,0 +1,279 @@
+package com.xqbase.metric.client;
+
+import java.io.IOException;
+import java.net.URLEncoder;
+import java.util.Arrays;
+
+import com.xqbase.metric.common.MetricBatch;
+import com.xqbase.metric.common.MetricKey;
+import com.xqbase.metric.common.MetricSketch;
+
+// Encodes rows into a reused buffer, as text or in the binary format read by "MetricDecoder"
+class MetricEncoder {
+	private static String encode(String s) {
+		try {
+			return URLEncoder.encode(s, "UTF-8");
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	// Url-encoded strings are always ASCII
+	private static byte[] ascii(CharSequence s) {
+		byte[] b = new byte[s.length()];
+		for (int i = 0; i < b.length; i ++) {
+			b[i] = (byte) s.charAt(i);
+		}
+		return b;
+	}
+
+	private static int utf8Length(String s) {
+		int n = 0;
+		int length = s.length();
+		for (int i = 0; i < length; i ++) {
+			char c = s.charAt(i);
+			if (c < 0x80) {
+				n ++;
+			} else if (c < 0x800) {
+				n += 2;
+			} else if (!Character.isSurrogate(c)) {
+				n += 3;
+			} else if (Character.isHighSurrogate(c) && i + 1 < length &&
+					Character.isLowSurrogate(s.charAt(i + 1))) {
+				n += 4;
+				i ++;
+			} else {
+				// Unpaired surrogate, written as '?' like "String.getBytes"
+				n ++;
+			}
+		}
+		return n;
+	}
+
+	private static int hash(String s) {
+		int h = s.hashCode() * 0x9E3779B9;
+		return h ^ (h >>> 16);
+	}
+
+	private boolean binary;
+	private byte[] buf = new byte[256];
+	private int len = 0;
+	private boolean first = true;
+	private StringBuilder sb = new StringBuilder();
+	// Strings of the current packet, a string is written once and then referred by index
+	private String[] dictKeys = new String[64];
+	private int[] dictIndexes = new int[64];
+	private int dictSize = 0;
+
+	MetricEncoder(boolean binary) {
+		this.binary = binary;
+	}
+
+	boolean isBinary() {
+		return binary;
+	}
+
+	private void ensure(int n) {
+		if (len + n > buf.length) {
+			buf = Arrays.copyOf(buf, Math.max(buf.length * 2, len + n));
+		}
+	}
+
+	private void writeBytes(byte[] b) {
+		ensure(b.length);
+		System.arraycopy(b, 0, buf, len, b.length);
+		len += b.length;
+	}
+
+	private void writeAscii(CharSequence s) {
+		int n = s.length();
+		ensure(n);
+		for (int i = 0; i < n; i ++) {
+			buf[len ++] = (byte) s.charAt(i);
+		}
+	}
+
+	private void writeVarint(long l) {
+		ensure(10);
+		long v = l;
+		while ((v & ~0x7FL) != 0) {
+			buf[len ++] = (byte) ((v & 0x7F) | 0x80);
+			v >>>= 7;
+		}
+		buf[len ++] = (byte) v;
+	}
+
+	// Byte-reversed, so the trailing zero bytes of short mantissas (e.g. integers) are not written
+	private void writeDouble(double d) {
+		writeVarint(Long.reverseBytes(Double.doubleToLongBits(d)));
+	}
+
+	private void writeUtf8(String s, int n) {
+		ensure(n);
+		int length = s.length();
+		for (int i = 0; i < length; i ++) {
+			char c = s.charAt(i);
+			if (c < 0x80) {
+				buf[len ++] = (byte) c;
+			} else if (c < 0x800) {
+				buf[len ++] = (byte) (0xC0 | (c >> 6));
+				buf[len ++] = (byte) (0x80 | (c & 0x3F));
+			} else if (!Character.isSurrogate(c)) {
+				buf[len ++] = (byte) (0xE0 | (c >> 12));
+				buf[len ++] = (byte) (0x80 | ((c >> 6) & 0x3F));
+				buf[len ++] = (byte) (0x80 | (c & 0x3F));
+			} else if (Character.isHighSurrogate(c) && i + 1 < length &&
+					Character.isLowSurrogate(s.charAt(i + 1))) {
+				int cp = Character.toCodePoint(c, s.charAt(i + 1));
+				buf[len ++] = (byte) (0xF0 | (cp >> 18));
+				buf[len ++] = (byte) (0x80 | ((cp >> 12) & 0x3F));
+				buf[len ++] = (byte) (0x80 | ((cp >> 6) & 0x3F));
+				buf[len ++] = (byte) (0x80 | (cp & 0x3F));
+				i ++;
+			} else {
+				buf[len ++] = '?';
+			}
+		}
+	}
+
+	private void putDict(String s, int index) {
+		int mask = dictKeys.length - 1;
+		int slot = hash(s) & mask;
+		while (dictKeys[slot] != null) {
+			slot = (slot + 1) & mask;
+		}
+		dictKeys[slot] = s;
+		dictIndexes[slot] = index;
+	}
+
+	// <index + 1> for a known string, or 0, <length>, <utf-8 bytes> for a new one
+	private void writeString(String s) {
+		int mask = dictKeys.length - 1;
+		int slot = hash(s) & mask;
+		String key;
+		while ((key = dictKeys[slot]) != null) {
+			if (key.equals(s)) {
+				writeVarint(dictIndexes[slot] + 1);
+				return;
+			}
+			slot = (slot + 1) & mask;
+		}
+		dictKeys[slot] = s;
+		dictIndexes[slot] = dictSize;
+		dictSize ++;
+		if (dictSize * 2 > dictKeys.length) {
+			// Keep the table at most half full, it is not shrunk by "reset"
+			String[] keys = dictKeys;
+			int[] indexes = dictIndexes;
+			dictKeys = new String[keys.length * 2];
+			dictIndexes = new int[keys.length * 2];
+			for (int i = 0; i < keys.length; i ++) {
+				if (keys[i] != null) {
+					putDict(keys[i], indexes[i]);
+				}
+			}
+		}
+		int n = utf8Length(s);
+		writeVarint(0);
+		writeVarint(n);
+		writeUtf8(s, n);
+	}
+
+	// Starts a new packet
+	void reset() {
+		if (dictSize > 0) {
+			Arrays.fill(dictKeys, null);
+			dictSize = 0;
+		}
+		first = true;
+	}
+
+	// <name> <time> <count> <sum> <max> <min> <sqr>
+	// <sketch_length> [<sketch_value> ...] <tag_count> [<key> <value> ...]
+	private void encodeBinary(MetricBatch metrics, int i, int minute) {
+		if (first) {
+			buf[len ++] = (byte) MetricDecoder.MAGIC;
+		}
+		writeString(metrics.getName(i));
+		writeVarint(minute);
+		writeVarint(metrics.getCount(i));
+		writeDouble(metrics.getSum(i));
+		writeDouble(metrics.getMax(i));
+		writeDouble(metrics.getMin(i));
+		writeDouble(metrics.getSqr(i));
+		MetricSketch sketch = metrics.getSketch(i);
+		if (sketch == null) {
+			writeVarint(0);
+		} else {
+			long[] values = sketch.toArray();
+			writeVarint(values.length);
+			writeVarint(values[0]);
+			// Zigzag for negative index
+			writeVarint((values[1] << 1) ^ (values[1] >> 63));
+			for (int j = 2; j < values.length; j ++) {
+				writeVarint(values[j]);
+			}
+		}
+		MetricKey key = metrics.getKey(i);
+		int tags = key.getTagCount();
+		writeVarint(tags);
+		for (int j = 0; j < tags; j ++) {
+			writeString(key.getTagKey(j));
+			writeString(key.getTagValue(j));
+		}
+	}
+
+	// <name>/<time>/<count>/<sum>/<max>/<min>/<sqr>[/<sketch>][?<tag>=<value>[&...]]
+	private void encodeText(MetricBatch metrics, int i, int minute) {
+		MetricKey key = metrics.getKey(i);
+		Object attachment = key.attachment();
+		byte[][] encoded;
+		if (attachment instanceof byte[][]) {
+			encoded = (byte[][]) attachment;
+		} else {
+			// Url-encoded once for the lifetime of the key
+			StringBuilder tags = new StringBuilder();
+			for (int j = 0; j < key.getTagCount(); j ++) {
+				tags.append(j == 0 ? '?' : '&').
+						append(encode(key.getTagKey(j))).append('=').
+						append(encode(key.getTagValue(j)));
+			}
+			encoded = new byte[][] {ascii(encode(key.getName())), ascii(tags)};
+			key.attach(encoded);
+		}
+		writeBytes(encoded[0]);
+		sb.setLength(0);
+		sb.append('/').append(minute).
+				append('/').append(metrics.getCount(i)).
+				append('/').append(metrics.getSum(i)).
+				append('/').append(metrics.getMax(i)).
+				append('/').append(metrics.getMin(i)).
+				append('/').append(metrics.getSqr(i));
+		MetricSketch sketch = metrics.getSketch(i);
+		if (sketch != null) {
+			sketch.appendTo(sb.append('/'));
+		}
+		writeAscii(sb);
+		writeBytes(encoded[1]);
+		ensure(1);
+		buf[len ++] = '\n';
+	}
+
+	// Returns the length of the row in "array()", and the first row
+	// of a packet in binary format starts with the magic byte
+	int encode(MetricBatch metrics, int i, int minute) {
+		len = 0;
+		ensure(1);
+		if (binary) {
+			encodeBinary(metrics, i, minute);
+		} else {
+			encodeText(metrics, i, minute);
+		}
+		first = false;
+		return len;
+	}
+
+	byte[] array() {
+		return buf;
+	}
+}
\ No newline at end of file
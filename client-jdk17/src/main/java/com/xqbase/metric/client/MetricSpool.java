@@ -0,0 +1,167 @@
+package com.xqbase.metric.client;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+// Memory-mapped ring file of packets not acknowledged by a collector,
+// oldest packets are dropped when full, only accessed by the sending thread
+// except "force", which may be called by another thread
+class MetricSpool {
+	// <head> <tail>, logical positions of the oldest record and the end
+	private static final int HEADER = 16;
+	// <length> <minute> <packet>
+	private static final int RECORD_HEADER = 8;
+
+	private RandomAccessFile file;
+	private MappedByteBuffer mbb;
+	private long size, head, tail;
+	private volatile boolean dirty = false;
+	private byte[] intBuf = new byte[RECORD_HEADER];
+
+	MetricSpool(File f, int capacity) throws IOException {
+		file = new RandomAccessFile(f, "rw");
+		try {
+			// Keep the size of an existing spool, so records are not lost
+			long length = file.length();
+			if (length <= HEADER + RECORD_HEADER) {
+				length = capacity;
+				file.setLength(length);
+			}
+			mbb = file.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, length);
+		} catch (IOException e) {
+			file.close();
+			throw e;
+		}
+		size = mbb.capacity() - HEADER;
+		head = mbb.getLong(0);
+		tail = mbb.getLong(8);
+		if (head < 0 || tail < head || tail - head > size) {
+			head = tail = 0;
+			writeHeader();
+		}
+	}
+
+	private void writeHeader() {
+		mbb.putLong(0, head);
+		mbb.putLong(8, tail);
+		dirty = true;
+	}
+
+	private void put(long pos, byte[] b, int off, int len) {
+		int i = (int) (pos % size);
+		int n = (int) Math.min(len, size - i);
+		mbb.position(HEADER + i);
+		mbb.put(b, off, n);
+		if (n < len) {
+			mbb.position(HEADER);
+			mbb.put(b, off + n, len - n);
+		}
+	}
+
+	private void get(long pos, byte[] b, int off, int len) {
+		int i = (int) (pos % size);
+		int n = (int) Math.min(len, size - i);
+		mbb.position(HEADER + i);
+		mbb.get(b, off, n);
+		if (n < len) {
+			mbb.position(HEADER);
+			mbb.get(b, off + n, len - n);
+		}
+	}
+
+	private int getInt(long pos) {
+		get(pos, intBuf, 0, 4);
+		return (intBuf[0] & 0xFF) << 24 | (intBuf[1] & 0xFF) << 16 |
+				(intBuf[2] & 0xFF) << 8 | (intBuf[3] & 0xFF);
+	}
+
+	private void putInt(int i, int off) {
+		intBuf[off] = (byte) (i >>> 24);
+		intBuf[off + 1] = (byte) (i >>> 16);
+		intBuf[off + 2] = (byte) (i >>> 8);
+		intBuf[off + 3] = (byte) i;
+	}
+
+	// Returns false if the packet is too large for the spool
+	boolean add(int minute, byte[] b, int off, int len) {
+		int recordLen = RECORD_HEADER + len;
+		if (recordLen > size) {
+			return false;
+		}
+		// Drop oldest records
+		while (size - (tail - head) < recordLen) {
+			int len_ = length(head);
+			head = len_ < 0 ? tail : head + RECORD_HEADER + len_;
+		}
+		putInt(len, 0);
+		putInt(minute, 4);
+		put(tail, intBuf, 0, RECORD_HEADER);
+		put(tail + RECORD_HEADER, b, off, len);
+		tail += recordLen;
+		writeHeader();
+		return true;
+	}
+
+	boolean isEmpty() {
+		return head == tail;
+	}
+
+	long depth() {
+		return tail - head;
+	}
+
+	long head() {
+		return head;
+	}
+
+	long tail() {
+		return tail;
+	}
+
+	// Returns the length of packet, or -1 if the record is corrupted
+	int length(long pos) {
+		int len = getInt(pos);
+		return len <= 0 || pos + RECORD_HEADER + len > tail ? -1 : len;
+	}
+
+	long next(long pos) {
+		return pos + RECORD_HEADER + getInt(pos);
+	}
+
+	int minute(long pos) {
+		return getInt(pos + 4);
+	}
+
+	void read(long pos, byte[] b, int len) {
+		get(pos + RECORD_HEADER, b, 0, len);
+	}
+
+	void removeTo(long pos) {
+		head = pos;
+		writeHeader();
+	}
+
+	void clear() {
+		head = tail;
+		writeHeader();
+	}
+
+	// Called periodically rather than on every write
+	void force() {
+		if (dirty) {
+			// Cleared first, so a header written during "force" is synced next time
+			dirty = false;
+			mbb.force();
+		}
+	}
+
+	void close() {
+		force();
+		try {
+			file.close();
+		} catch (IOException e) {/**/}
+	}
+}
\ No newline at end of file
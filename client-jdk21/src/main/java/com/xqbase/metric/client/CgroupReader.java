@@ -0,0 +1,254 @@
+package com.xqbase.metric.client;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+
+// Reads cgroup v2 or v1 files of the current process into a reused buffer,
+// only accessed by the monitor thread
+class CgroupReader {
+	// Indexes of values filled by "read", -1 if not available or unlimited
+	static final int CPU_USAGE = 0; // nanoseconds
+	static final int CPU_QUOTA = 1; // microseconds per period
+	static final int CPU_PERIOD = 2; // microseconds
+	static final int CPU_PERIODS = 3;
+	static final int CPU_THROTTLED = 4;
+	static final int CPU_THROTTLED_TIME = 5; // nanoseconds
+	static final int MEMORY_LIMIT = 6;
+	static final int MEMORY_USAGE = 7;
+	static final int MEMORY_INACTIVE_FILE = 8;
+	static final int OOM_KILLS = 9;
+	static final int VALUES = 10;
+
+	private static final String ROOT = "/sys/fs/cgroup";
+	// v1 reports no limit as a huge number rounded to pages
+	private static final long UNLIMITED = Long.MAX_VALUE / 2;
+
+	private static byte[][] keys(String... keys) {
+		byte[][] b = new byte[keys.length][];
+		for (int i = 0; i < keys.length; i ++) {
+			b[i] = keys[i].getBytes(StandardCharsets.US_ASCII);
+		}
+		return b;
+	}
+
+	private static final byte[][] V2_CPU_STAT =
+			keys("usage_usec", "nr_periods", "nr_throttled", "throttled_usec");
+	private static final byte[][] V1_CPU_STAT =
+			keys("nr_periods", "nr_throttled", "throttled_time");
+	private static final byte[][] V2_MEMORY_STAT = keys("inactive_file");
+	private static final byte[][] V1_MEMORY_STAT = keys("total_inactive_file");
+	private static final byte[][] V2_MEMORY_EVENTS = keys("oom_kill");
+	private static final byte[][] V1_OOM_CONTROL = keys("oom_kill");
+
+	private static boolean isRoot(String path) {
+		return path == null || path.equals("/");
+	}
+
+	// Directory of the cgroup, or the mount point if the path is not visible,
+	// e.g. in a container without its own cgroup namespace,
+	// or null in the root cgroup, whose values are of the whole host
+	private static String getDir(String mount, String path) {
+		if (isRoot(path)) {
+			return null;
+		}
+		if (new File(mount + path).isDirectory()) {
+			return mount + path;
+		}
+		return mount;
+	}
+
+	// Returns null if not in a cgroup, e.g. not on Linux,
+	// or in the root cgroup, whose values are of the whole host
+	static CgroupReader open() {
+		String v2Path = null, cpuPath = null, cpuacctPath = null, memoryPath = null;
+		try (BufferedReader in = new BufferedReader(new FileReader("/proc/self/cgroup"))) {
+			String line;
+			// <id>:<controllers>:<path>
+			while ((line = in.readLine()) != null) {
+				String[] ss = line.split(":", 3);
+				if (ss.length < 3) {
+					continue;
+				}
+				if (ss[1].isEmpty()) {
+					v2Path = ss[2];
+				}
+				for (String controller : ss[1].split(",")) {
+					switch (controller) {
+					case "cpu":
+						cpuPath = ss[2];
+						break;
+					case "cpuacct":
+						cpuacctPath = ss[2];
+						break;
+					case "memory":
+						memoryPath = ss[2];
+						break;
+					}
+				}
+			}
+		} catch (IOException e) {
+			return null;
+		}
+		if (new File(ROOT + "/cgroup.controllers").exists()) {
+			// "/" is also seen in a container with its own cgroup namespace,
+			// where the mount point is not the root and has "cgroup.type"
+			String dir = isRoot(v2Path) && new File(ROOT + "/cgroup.type").exists() ?
+					ROOT : getDir(ROOT, v2Path);
+			return dir == null ? null : new CgroupReader(true, dir, dir, dir);
+		}
+		if (new File(ROOT + "/memory").isDirectory()) {
+			// Controllers in the root cgroup are not available, see "getDir"
+			String cpuDir = getDir(ROOT + "/cpu", cpuPath),
+					cpuacctDir = getDir(ROOT + "/cpuacct", cpuacctPath),
+					memoryDir = getDir(ROOT + "/memory", memoryPath);
+			return cpuDir == null && cpuacctDir == null && memoryDir == null ?
+					null : new CgroupReader(false, cpuDir, cpuacctDir, memoryDir);
+		}
+		return null;
+	}
+
+	private boolean v2;
+	private String cpuDir, cpuacctDir, memoryDir;
+	private byte[] buf = new byte[4096];
+	private int len = 0;
+	private long[] stat = new long[4];
+
+	// Directories of the controllers, null if not available
+	CgroupReader(boolean v2, String cpuDir, String cpuacctDir, String memoryDir) {
+		this.v2 = v2;
+		this.cpuDir = cpuDir;
+		this.cpuacctDir = cpuacctDir;
+		this.memoryDir = memoryDir;
+	}
+
+	private boolean load(String dir, String file) {
+		len = 0;
+		if (dir == null) {
+			return false;
+		}
+		try (InputStream in = new FileInputStream(dir + "/" + file)) {
+			int n;
+			while ((n = in.read(buf, len, buf.length - len)) > 0) {
+				len += n;
+				if (len == buf.length) {
+					byte[] buf_ = new byte[buf.length * 2];
+					System.arraycopy(buf, 0, buf_, 0, len);
+					buf = buf_;
+				}
+			}
+			return true;
+		} catch (IOException e) {
+			// Not mounted, or the controller is not enabled
+			return false;
+		}
+	}
+
+	// Digits from "off", or -1 for "max" or anything else
+	private long parseLong(int off) {
+		int i = off;
+		boolean negative = i < len && buf[i] == '-';
+		if (negative) {
+			i ++;
+		}
+		long value = 0;
+		int start = i;
+		while (i < len && buf[i] >= '0' && buf[i] <= '9') {
+			value = value * 10 + buf[i] - '0';
+			i ++;
+		}
+		return i == start || negative ? -1 : value;
+	}
+
+	private int nextToken(int off) {
+		int i = off;
+		while (i < len && buf[i] != ' ' && buf[i] != '\n') {
+			i ++;
+		}
+		return i + 1;
+	}
+
+	private long readLong(String dir, String file) {
+		return load(dir, file) ? parseLong(0) : -1;
+	}
+
+	// Lines of "<key> <value>", a missing key is -1
+	private boolean readStat(String dir, String file, byte[][] keys) {
+		for (int i = 0; i < keys.length; i ++) {
+			stat[i] = -1;
+		}
+		if (!load(dir, file)) {
+			return false;
+		}
+		int lineStart = 0;
+		while (lineStart < len) {
+			int valueStart = nextToken(lineStart);
+			int keyLen = valueStart - 1 - lineStart;
+			for (int i = 0; i < keys.length; i ++) {
+				byte[] key = keys[i];
+				if (key.length != keyLen) {
+					continue;
+				}
+				boolean equal = true;
+				for (int j = 0; j < keyLen; j ++) {
+					if (buf[lineStart + j] != key[j]) {
+						equal = false;
+						break;
+					}
+				}
+				if (equal) {
+					stat[i] = parseLong(valueStart);
+					break;
+				}
+			}
+			int i = valueStart;
+			while (i < len && buf[i - 1] != '\n') {
+				i ++;
+			}
+			lineStart = i;
+		}
+		return true;
+	}
+
+	void read(long[] values) {
+		if (v2) {
+			// "<quota> <period>", or "max <period>"
+			if (load(cpuDir, "cpu.max")) {
+				values[CPU_QUOTA] = parseLong(0);
+				values[CPU_PERIOD] = parseLong(nextToken(0));
+			} else {
+				values[CPU_QUOTA] = values[CPU_PERIOD] = -1;
+			}
+			readStat(cpuDir, "cpu.stat", V2_CPU_STAT);
+			values[CPU_USAGE] = stat[0] < 0 ? -1 : stat[0] * 1000;
+			values[CPU_PERIODS] = stat[1];
+			values[CPU_THROTTLED] = stat[2];
+			values[CPU_THROTTLED_TIME] = stat[3] < 0 ? -1 : stat[3] * 1000;
+			values[MEMORY_LIMIT] = readLong(memoryDir, "memory.max");
+			values[MEMORY_USAGE] = readLong(memoryDir, "memory.current");
+			readStat(memoryDir, "memory.stat", V2_MEMORY_STAT);
+			values[MEMORY_INACTIVE_FILE] = stat[0];
+			readStat(memoryDir, "memory.events", V2_MEMORY_EVENTS);
+			values[OOM_KILLS] = stat[0];
+		} else {
+			values[CPU_QUOTA] = readLong(cpuDir, "cpu.cfs_quota_us");
+			values[CPU_PERIOD] = readLong(cpuDir, "cpu.cfs_period_us");
+			readStat(cpuDir, "cpu.stat", V1_CPU_STAT);
+			values[CPU_USAGE] = readLong(cpuacctDir, "cpuacct.usage");
+			values[CPU_PERIODS] = stat[0];
+			values[CPU_THROTTLED] = stat[1];
+			values[CPU_THROTTLED_TIME] = stat[2];
+			long limit = readLong(memoryDir, "memory.limit_in_bytes");
+			values[MEMORY_LIMIT] = limit >= UNLIMITED ? -1 : limit;
+			values[MEMORY_USAGE] = readLong(memoryDir, "memory.usage_in_bytes");
+			readStat(memoryDir, "memory.stat", V1_MEMORY_STAT);
+			values[MEMORY_INACTIVE_FILE] = stat[0];
+			readStat(memoryDir, "memory.oom_control", V1_OOM_CONTROL);
+			values[OOM_KILLS] = stat[0];
+		}
+	}
+}
\ No newline at end of file
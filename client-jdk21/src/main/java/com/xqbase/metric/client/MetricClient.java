@@ -0,0 +1,370 @@
+package com.xqbase.metric.client;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.Deflater;
+
+import com.xqbase.metric.common.Metric;
+import com.xqbase.metric.common.MetricBatch;
+
+public class MetricClient {
+	public static final int MAX_PACKET_SIZE_FRAG = 65535 - 28;
+	public static final int MAX_PACKET_SIZE = 1500 - 28;
+	// Deflated packet in a TCP frame, after the 4-byte length
+	public static final int MAX_FRAME_SIZE = 65536;
+
+	private static final int MINUTE = 60000;
+
+	private static int maxPacketSize = MAX_PACKET_SIZE;
+
+	public static void setMaxPacketSize(int maxPacketSize) {
+		MetricClient.maxPacketSize = maxPacketSize;
+	}
+
+	private static boolean binary = false;
+
+	// Binary rows are smaller and faster to parse, but need upgraded collectors
+	public static void setBinary(boolean binary) {
+		MetricClient.binary = binary;
+	}
+
+	private static boolean dictionary = false;
+
+	// The preset dictionary helps small packets, but needs upgraded collectors
+	public static void setDictionary(boolean dictionary) {
+		MetricClient.dictionary = dictionary;
+	}
+
+	private static boolean tcp = false;
+
+	// Packets are sent to collectors as length-prefixed frames over persistent
+	// connections, and each frame is acknowledged, which needs upgraded collectors
+	public static void setTcp(boolean tcp) {
+		MetricClient.tcp = tcp;
+	}
+
+	private static int pacingWindow = 0;
+
+	// UDP packets of a batch are spread over "pacingWindow" milliseconds instead of
+	// sent in one burst, which may overflow the receive buffer of a collector
+	public static void setPacingWindow(int pacingWindow) {
+		MetricClient.pacingWindow = Math.max(Math.min(pacingWindow, MINUTE / 2), 0);
+	}
+
+	private static int maxPacketsPerSecond = 0;
+
+	// UDP packets per second per collector, 0 for unlimited
+	public static void setMaxPacketsPerSecond(int maxPacketsPerSecond) {
+		MetricClient.maxPacketsPerSecond = maxPacketsPerSecond;
+	}
+
+	// Paced packets of a batch are sent within this many milliseconds,
+	// half a minute if only "maxPacketsPerSecond" is set
+	private static int pacingBudget() {
+		return pacingWindow > 0 || maxPacketsPerSecond == 0 ? pacingWindow : MINUTE / 2;
+	}
+
+	private static String spoolDir = null;
+
+	// TCP packets not acknowledged by a collector are kept in "<spoolDir>/<host>_<port>.spool",
+	// and replayed after the collector answers again
+	public static void setSpoolDir(String spoolDir) {
+		MetricClient.spoolDir = spoolDir;
+	}
+
+	private static int spoolSize = 16777216;
+
+	public static void setSpoolSize(int spoolSize) {
+		MetricClient.spoolSize = spoolSize;
+	}
+
+	private static int replayRate = 262144;
+
+	// Bytes replayed per second, so a recovering collector is not flooded
+	public static void setReplayRate(int replayRate) {
+		MetricClient.replayRate = replayRate;
+	}
+
+	private static int replicas = 0;
+
+	// Each metric is sent to "replicas" collectors on a consistent hash ring,
+	// instead of all collectors, 0 (default) or not less than collectors for all
+	public static void setReplicas(int replicas) {
+		MetricClient.replicas = replicas;
+	}
+
+	private static boolean shardByTags = false;
+
+	// Shard by name and tags, instead of name only which keeps a metric on the same collectors
+	public static void setShardByTags(boolean shardByTags) {
+		MetricClient.shardByTags = shardByTags;
+	}
+
+	private static MetricRing ring = null;
+	private static int addressTtl = MINUTE;
+
+	// Collector addresses are resolved in background every "addressTtl" milliseconds
+	public static void setAddressTtl(int addressTtl) {
+		MetricClient.addressTtl = addressTtl;
+	}
+
+	private static int gaugeInterval = 5000;
+
+	// Gauges registered in "Metric" are sampled every "gaugeInterval" milliseconds
+	public static void setGaugeInterval(int gaugeInterval) {
+		MetricClient.gaugeInterval = Math.max(Math.min(gaugeInterval, MINUTE), 100);
+	}
+
+	private static int shutdownTimeout = 10000;
+
+	// "shutdown" waits at most "shutdownTimeout" milliseconds for collectors,
+	// and then spools (if "spoolDir" is set) or drops packets not sent yet
+	public static void setShutdownTimeout(int shutdownTimeout) {
+		MetricClient.shutdownTimeout = shutdownTimeout;
+	}
+
+	// One per collector, each sends on its own virtual thread
+	private static MetricSender[] senders = null;
+
+	private static void resolve(InetSocketAddress[] addrs) {
+		for (int i = 0; i < addrs.length; i ++) {
+			InetSocketAddress addr = new InetSocketAddress(addrs[i].getHostString(),
+					addrs[i].getPort());
+			// Keep the last resolved address if the lookup fails
+			if (!addr.isUnresolved()) {
+				senders[i].setAddress(addr);
+			}
+		}
+	}
+
+	// Only accessed by the flushing thread
+	private static Deflater deflater = null;
+	private static MetricEncoder encoder = null;
+	// Rows are deflated into "packet" directly, and then copied for senders
+	private static byte[] packet = new byte[MAX_PACKET_SIZE];
+	private static int packetLen = 0;
+	private static ArrayList<byte[]> packets = new ArrayList<>();
+
+	private static void startPacket() {
+		if (deflater == null) {
+			deflater = new Deflater();
+		} else {
+			deflater.reset();
+		}
+		if (dictionary) {
+			deflater.setDictionary(MetricDictionary.getDefault());
+		}
+		encoder.reset();
+		packetLen = 0;
+	}
+
+	private static void ensurePacket() {
+		if (packetLen == packet.length) {
+			packet = Arrays.copyOf(packet, packet.length * 2);
+		}
+	}
+
+	private static void deflate(byte[] b, int len) {
+		deflater.setInput(b, 0, len);
+		// A full output buffer may leave pending output
+		do {
+			ensurePacket();
+			packetLen += deflater.deflate(packet, packetLen,
+					packet.length - packetLen, Deflater.SYNC_FLUSH);
+		} while (packetLen == packet.length);
+	}
+
+	private static void finishPacket() {
+		deflater.finish();
+		while (!deflater.finished()) {
+			ensurePacket();
+			packetLen += deflater.deflate(packet, packetLen, packet.length - packetLen);
+		}
+		if (tcp && packetLen > MAX_FRAME_SIZE) {
+			// Only a single huge row, which would be rejected by collectors
+			Metric.put("metric.packets.dropped", 1, "reason", "oversized");
+			return;
+		}
+		packets.add(Arrays.copyOf(packet, packetLen));
+	}
+
+	// Encodes the rows routed to collector "target", or all rows if -1
+	private static byte[][] encode(int target, int minute, MetricBatch metrics) {
+		int maxPacketSize_ = tcp ? MAX_FRAME_SIZE : maxPacketSize;
+		packets.clear();
+		startPacket();
+		int rows = 0;
+		for (int i = 0; i < metrics.size(); i ++) {
+			if (target >= 0 && !ring.routes(MetricRing.mix(shardByTags ?
+					metrics.getKey(i).hashCode() : metrics.getName(i).hashCode()),
+					replicas, target)) {
+				continue;
+			}
+			int len = encoder.encode(metrics, i, minute);
+			if (rows > 0 && packetLen + len + 10 > maxPacketSize_) {
+				finishPacket();
+				// Strings of the last packet are unknown in the new one
+				startPacket();
+				rows = 0;
+				len = encoder.encode(metrics, i, minute);
+			}
+			deflate(encoder.array(), len);
+			rows ++;
+		}
+		if (rows > 0) {
+			finishPacket();
+		}
+		byte[][] packets_ = packets.toArray(new byte[0][]);
+		packets.clear();
+		return packets_;
+	}
+
+	// Only encodes, senders deliver to collectors concurrently
+	private static void send(int minute, MetricBatch metrics) {
+		if (encoder == null || encoder.isBinary() != binary) {
+			encoder = new MetricEncoder(binary);
+		}
+		// Not paced when flushed by "shutdown"
+		int window = timer != null && (pacingWindow > 0 ||
+				maxPacketsPerSecond > 0) ? pacingWindow : -1;
+		if (ring == null) {
+			byte[][] packets_ = encode(-1, minute, metrics);
+			if (packets_.length > 0) {
+				MetricSender.Flush flush = new MetricSender.Flush(minute, packets_, window);
+				for (MetricSender sender : senders) {
+					sender.add(flush);
+				}
+			}
+			return;
+		}
+		for (int i = 0; i < senders.length; i ++) {
+			byte[][] packets_ = encode(i, minute, metrics);
+			if (packets_.length > 0) {
+				senders[i].add(new MetricSender.Flush(minute, packets_, window));
+			}
+		}
+	}
+
+	private static volatile ScheduledThreadPoolExecutor timer = null;
+	// Not resolved by "timer", so a slow lookup does not delay flushes
+	private static ScheduledThreadPoolExecutor resolver = null;
+	private static volatile Runnable scheduled = null;
+	private static Runnable command;
+	// Sent with a random delay, so do not reuse the batch of the last minute
+	private static MetricBatch[] batches = {new MetricBatch(), new MetricBatch()};
+
+	private static MetricSpool openSpool(File dir, InetSocketAddress addr) {
+		try {
+			return new MetricSpool(new File(dir, addr.getHostString() +
+					"_" + addr.getPort() + ".spool"), spoolSize);
+		} catch (IOException e) {
+			System.err.println(e.getMessage());
+			return null;
+		}
+	}
+
+	public static synchronized void startup(InetSocketAddress... addrs) {
+		if (timer != null) {
+			return;
+		}
+		long start = System.currentTimeMillis();
+		AtomicInteger now = new AtomicInteger((int) (start / MINUTE));
+		Random random = new Random();
+		command = () -> {
+			try {
+				int minute = now.incrementAndGet();
+				MetricBatch metrics = batches[minute & 1];
+				Metric.removeAll(metrics);
+				if (metrics.isEmpty()) {
+					return;
+				}
+				if (timer == null) {
+					send(minute, metrics);
+					return;
+				}
+				Runnable scheduled_ = () -> {
+					scheduled = null;
+					try {
+						send(minute, metrics);
+					} catch (Error | RuntimeException e) {
+						e.printStackTrace();
+					}
+				};
+				scheduled = scheduled_;
+				// Paced sending ends within the minute
+				timer.schedule(scheduled_, random.nextInt(MINUTE - pacingBudget()),
+						TimeUnit.MILLISECONDS);
+			} catch (Error | RuntimeException e) {
+				e.printStackTrace();
+			}
+		};
+		File dir = null;
+		if (tcp && spoolDir != null) {
+			dir = new File(spoolDir);
+			dir.mkdirs();
+		}
+		senders = new MetricSender[addrs.length];
+		for (int i = 0; i < addrs.length; i ++) {
+			senders[i] = new MetricSender(addrs[i], tcp, maxPacketsPerSecond,
+					dir == null ? null : openSpool(dir, addrs[i]), replayRate);
+			senders[i].start();
+		}
+		ring = replicas > 0 && replicas < addrs.length ? new MetricRing(addrs) : null;
+		timer = new ScheduledThreadPoolExecutor(1);
+		timer.setExecuteExistingDelayedTasksAfterShutdownPolicy(false);
+		timer.scheduleAtFixedRate(command,
+				MINUTE - start % MINUTE, MINUTE, TimeUnit.MILLISECONDS);
+		resolver = new ScheduledThreadPoolExecutor(1, r -> {
+			Thread thread = new Thread(r, "metric-resolver");
+			thread.setDaemon(true);
+			return thread;
+		});
+		resolver.scheduleWithFixedDelay(() -> resolve(addrs),
+				addressTtl, addressTtl, TimeUnit.MILLISECONDS);
+		// Sampled between sends, and with a fixed delay, so samples due
+		// during a paced or TCP send are not taken in a burst afterwards
+		timer.scheduleWithFixedDelay(() -> {
+			try {
+				Metric.sample();
+			} catch (Error | RuntimeException e) {
+				e.printStackTrace();
+			}
+		}, gaugeInterval, gaugeInterval, TimeUnit.MILLISECONDS);
+	}
+
+	public static synchronized void shutdown() {
+		if (timer == null) {
+			return;
+		}
+		resolver.shutdown();
+		timer.shutdown();
+		try {
+			while (!resolver.awaitTermination(1, TimeUnit.SECONDS)) {/**/}
+			while (!timer.awaitTermination(1, TimeUnit.SECONDS)) {/**/}
+		} catch (InterruptedException e) {/**/}
+		resolver = null;
+		timer = null;
+		if (scheduled != null) {
+			scheduled.run();
+			scheduled = null;
+		}
+		command.run();
+		// Senders are drained concurrently, all within one deadline
+		long deadline = System.currentTimeMillis() + shutdownTimeout;
+		for (MetricSender sender : senders) {
+			sender.stop(deadline);
+		}
+		senders = null;
+		if (deflater != null) {
+			deflater.end();
+			deflater = null;
+		}
+	}
+}
\ No newline at end of file
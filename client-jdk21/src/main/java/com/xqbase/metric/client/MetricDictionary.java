@@ -0,0 +1,37 @@
+package com.xqbase.metric.client;
+
+import java.nio.charset.StandardCharsets;
+import java.util.zip.Adler32;
+
+// Preset deflate dictionaries, identified by Adler-32 in the zlib header of each packet
+public class MetricDictionary {
+	// Common fragments of rows, most frequent ones at the end
+	private static final byte[] DEFAULT = ("swap_total&type=swap_used" +
+			"&type=physical_total&type=physical_used&type=process_committed" +
+			"&type=non_heap_max&type=non_heap_committed&type=non_heap_used" +
+			"&type=heap_max&type=heap_committed&type=heap_used&type=daemon" +
+			"&type=total&type=system&type=process&name=metric.throughput" +
+			"&name=metric.rows&name=metric.size&name=metric.tags.combinations" +
+			".server.gc.time?name=.server.memory_pool.percent?name=" +
+			".server.memory_pool.mb?name=.server.memory.percent?type=" +
+			".server.memory.mb?type=.server.threads?type=.server.cpu?type=" +
+			".webapp.connections/&content_type=text%2Fhtml&charset=UTF-8" +
+			"&remote_addr=&status=404&status=302&status=200&path=%2F" +
+			".webapp.request_time/.0/1/0.0/.0\n").getBytes(StandardCharsets.UTF_8);
+	private static final int DEFAULT_ID;
+
+	static {
+		Adler32 adler = new Adler32();
+		adler.update(DEFAULT, 0, DEFAULT.length);
+		DEFAULT_ID = (int) adler.getValue();
+	}
+
+	static byte[] getDefault() {
+		return DEFAULT;
+	}
+
+	// Returns null if the dictionary is unknown, e.g. from a newer client
+	public static byte[] get(int id) {
+		return id == DEFAULT_ID ? DEFAULT : null;
+	}
+}
\ No newline at end of file
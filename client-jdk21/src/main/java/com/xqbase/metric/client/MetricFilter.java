@@ -0,0 +1,463 @@
+package com.xqbase.metric.client;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.servlet.AsyncContext;
+import javax.servlet.AsyncEvent;
+import javax.servlet.AsyncListener;
+import javax.servlet.DispatcherType;
+import javax.servlet.Filter;
+import javax.servlet.FilterChain;
+import javax.servlet.FilterConfig;
+import javax.servlet.ServletException;
+import javax.servlet.ServletRequest;
+import javax.servlet.ServletResponse;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletRequestWrapper;
+import javax.servlet.http.HttpServletResponse;
+
+import com.xqbase.metric.common.Metric;
+import com.xqbase.metric.common.MetricHandle;
+import com.xqbase.metric.common.MetricKey;
+
+public class MetricFilter implements Filter {
+	// Tag tuples not used recently are evicted beyond this
+	private static final int MAX_HANDLES = 1024;
+	private static final int REQUEST_TIME = 0, RESPONSE_SIZE = 1, FIRST_BYTE_TIME = 2;
+
+	// The path is the first "pathLen" characters of "path",
+	// so a truncated path is not copied for each request
+	private static class RequestKey {
+		private String path, contentType, charset;
+		private int pathLen, status, hash;
+
+		RequestKey set(String path, int pathLen,
+				int status, String contentType, String charset) {
+			this.path = path;
+			this.pathLen = pathLen;
+			this.status = status;
+			this.contentType = contentType;
+			this.charset = charset;
+			int h = 0;
+			if (pathLen == path.length()) {
+				h = path.hashCode();
+			} else {
+				for (int i = 0; i < pathLen; i ++) {
+					h = h * 31 + path.charAt(i);
+				}
+			}
+			hash = ((h * 31 + status) * 31 +
+					Objects.hashCode(contentType)) * 31 + Objects.hashCode(charset);
+			return this;
+		}
+
+		@Override
+		public int hashCode() {
+			return hash;
+		}
+
+		@Override
+		public boolean equals(Object o) {
+			if (!(o instanceof RequestKey)) {
+				return false;
+			}
+			RequestKey key = (RequestKey) o;
+			return hash == key.hash && status == key.status && pathLen == key.pathLen &&
+					path.regionMatches(0, key.path, 0, pathLen) &&
+					Objects.equals(contentType, key.contentType) &&
+					Objects.equals(charset, key.charset);
+		}
+	}
+
+	private static class HandleEntry {
+		MetricHandle[] handles;
+		// Set by hits and cleared by "sweep"
+		volatile boolean used = true;
+
+		HandleEntry(MetricHandle[] handles) {
+			this.handles = handles;
+		}
+	}
+
+	// Reused for lookups, so a cached tuple is found without allocation
+	private static ThreadLocal<RequestKey> lookupKey = ThreadLocal.withInitial(RequestKey::new);
+
+	private static AtomicInteger count = new AtomicInteger(0);
+	private static ManagementMonitor monitor;
+	private static AtomicInteger connections = new AtomicInteger(0);
+	private static String connectionsName;
+	private static Map<String, String> connectionsTagMap;
+
+	private FilterConfig conf;
+	private String requestTime, responseSize, firstByteTime;
+	private Map<String, String> tagMap;
+	// Set if a subclass overrides "truncatePath", which is not called otherwise
+	private boolean truncateOverridden = false;
+
+	protected String getAddresses() {
+		return conf.getInitParameter("addresses");
+	}
+
+	protected String getPrefix() {
+		return conf.getInitParameter("prefix");
+	}
+
+	protected String getTags() {
+		return conf.getInitParameter("tags");
+	}
+
+	protected boolean isFrag() {
+		return "true".equals(conf.getInitParameter("frag"));
+	}
+
+	protected boolean isBinary() {
+		return "true".equals(conf.getInitParameter("binary"));
+	}
+
+	protected boolean isDictionary() {
+		return "true".equals(conf.getInitParameter("dictionary"));
+	}
+
+	protected boolean isTcp() {
+		return "true".equals(conf.getInitParameter("tcp"));
+	}
+
+	protected String getSpoolDir() {
+		return conf.getInitParameter("spoolDir");
+	}
+
+	protected int getReplicas() {
+		String replicas = conf.getInitParameter("replicas");
+		try {
+			return replicas == null ? 0 : Integer.parseInt(replicas);
+		} catch (NumberFormatException e) {
+			return 0;
+		}
+	}
+
+	protected boolean isShardByTags() {
+		return "true".equals(conf.getInitParameter("shardByTags"));
+	}
+
+	protected int getMaxTagCombinations() {
+		String max = conf.getInitParameter("maxTagCombinations");
+		try {
+			return max == null ? 0 : Integer.parseInt(max);
+		} catch (NumberFormatException e) {
+			return 0;
+		}
+	}
+
+	protected int getPacingWindow() {
+		String window = conf.getInitParameter("pacingWindow");
+		try {
+			return window == null ? 0 : Integer.parseInt(window);
+		} catch (NumberFormatException e) {
+			return 0;
+		}
+	}
+
+	protected int getMaxPacketsPerSecond() {
+		String max = conf.getInitParameter("maxPacketsPerSecond");
+		try {
+			return max == null ? 0 : Integer.parseInt(max);
+		} catch (NumberFormatException e) {
+			return 0;
+		}
+	}
+
+	protected int getGaugeInterval() {
+		String interval = conf.getInitParameter("gaugeInterval");
+		try {
+			return interval == null ? 5000 : Integer.parseInt(interval);
+		} catch (NumberFormatException e) {
+			return 5000;
+		}
+	}
+
+	protected int getTopThreads() {
+		String top = conf.getInitParameter("topThreads");
+		try {
+			return top == null ? 0 : Integer.parseInt(top);
+		} catch (NumberFormatException e) {
+			return 0;
+		}
+	}
+
+	protected String truncatePath(String path) {
+		int slash = path.indexOf('/', 1);
+		return slash < 0 ? path : path.substring(0, slash);
+	}
+
+	private ConcurrentHashMap<RequestKey, HandleEntry> handles =
+			new ConcurrentHashMap<>();
+
+	// Evicts tuples not used since the last sweep, rather than strict LRU,
+	// so a hit only sets a flag
+	private void sweep() {
+		Iterator<HandleEntry> it = handles.values().iterator();
+		while (it.hasNext()) {
+			HandleEntry entry = it.next();
+			if (entry.used) {
+				entry.used = false;
+			} else {
+				it.remove();
+			}
+		}
+	}
+
+	// Tags are built only once for each tuple, rather than on every request
+	private MetricHandle[] getHandles(String path, int pathLen, int status,
+			String contentType, String charset) {
+		HandleEntry entry = handles.get(lookupKey.get().
+				set(path, pathLen, status, contentType, charset));
+		if (entry != null) {
+			if (!entry.used) {
+				entry.used = true;
+			}
+			return entry.handles;
+		}
+		path = path.substring(0, pathLen);
+		String type = "" + contentType;
+		int colon = type.indexOf(';', 1);
+		type = colon < 0 ? type : type.substring(0, colon);
+		Map<String, String> tagMap_ = new HashMap<>(tagMap);
+		MetricKey.putTagMap(tagMap_, "path", path,
+				"status", "" + status, "content_type", type,
+				"charset", "" + charset);
+		MetricHandle[] handles_ = new MetricHandle[] {
+			Metric.handle(requestTime, tagMap_),
+			Metric.handle(responseSize, tagMap_),
+			Metric.handle(firstByteTime, tagMap_)
+		};
+		if (handles.size() >= MAX_HANDLES) {
+			sweep();
+		}
+		if (handles.size() < MAX_HANDLES) {
+			handles.put(new RequestKey().set(path, pathLen, status,
+					contentType, charset), new HandleEntry(handles_));
+		}
+		return handles_;
+	}
+
+	private MetricHandle[] record(String path, int pathLen,
+			HttpServletResponse resp, long t) {
+		int status = resp.getStatus();
+		MetricHandle[] handles_ = status == HttpServletResponse.SC_NOT_FOUND ?
+				getHandles("__404__", 7, status, resp.getContentType(),
+				resp.getCharacterEncoding()) : getHandles(path, pathLen, status,
+				resp.getContentType(), resp.getCharacterEncoding());
+		// Milliseconds with sub-millisecond precision
+		handles_[REQUEST_TIME].record((System.nanoTime() - t) / 1000000d);
+		return handles_;
+	}
+
+	// Starts async with the wrapped response, so what is written through
+	// "AsyncContext.getResponse()", e.g. by the application's own threads, is counted
+	private static class AsyncRequest extends HttpServletRequestWrapper {
+		private MetricResponse resp_;
+
+		AsyncRequest(HttpServletRequest req, MetricResponse resp_) {
+			super(req);
+			this.resp_ = resp_;
+		}
+
+		@Override
+		public AsyncContext startAsync() {
+			return startAsync(this, resp_);
+		}
+	}
+
+	// Times an async request until the response is completed
+	private class AsyncTiming implements AsyncListener {
+		private String path;
+		private int pathLen;
+		private long t;
+		private HttpServletResponse resp;
+		private MetricResponse resp_;
+
+		AsyncTiming(String path, int pathLen, long t,
+				HttpServletResponse resp, MetricResponse resp_) {
+			this.path = path;
+			this.pathLen = pathLen;
+			this.t = t;
+			this.resp = resp;
+			this.resp_ = resp_;
+		}
+
+		@Override
+		public void onComplete(AsyncEvent event) {
+			connections.decrementAndGet();
+			MetricHandle[] handles_ = record(path, pathLen, resp, t);
+			if (resp_ == null) {
+				return;
+			}
+			handles_[RESPONSE_SIZE].record(resp_.getSize());
+			long firstByte = resp_.getFirstByte();
+			if (firstByte != 0) {
+				handles_[FIRST_BYTE_TIME].record((firstByte - t) / 1000000d);
+			}
+		}
+
+		@Override
+		public void onTimeout(AsyncEvent event) {
+			// Followed by "onComplete"
+		}
+
+		@Override
+		public void onError(AsyncEvent event) {
+			// Followed by "onComplete"
+		}
+
+		@Override
+		public void onStartAsync(AsyncEvent event) {
+			// Started again in an async dispatch, which removes listeners
+			event.getAsyncContext().addListener(this);
+		}
+	}
+
+	@Override
+	public void init(FilterConfig conf_) {
+		conf = conf_;
+		for (Class<?> c = getClass(); c != MetricFilter.class; c = c.getSuperclass()) {
+			try {
+				c.getDeclaredMethod("truncatePath", String.class);
+				truncateOverridden = true;
+				break;
+			} catch (NoSuchMethodException e) {
+				// Not overridden by this class
+			}
+		}
+
+		String prefix = getPrefix();
+		requestTime = prefix + ".webapp.request_time";
+		responseSize = prefix + ".webapp.response_size";
+		firstByteTime = prefix + ".webapp.first_byte_time";
+		Metric.enableSketch(requestTime);
+		Metric.enableSketch(firstByteTime);
+
+		tagMap = new HashMap<>();
+		String tags = getTags();
+		if (tags != null) {
+			for (String s : tags.split("[,;]")) {
+				String[] ss = s.split("[:=]");
+				if (ss.length > 1) {
+					tagMap.put(ss[0], ss[1]);
+				}
+			}
+		}
+
+		if (count.getAndIncrement() > 0) {
+			return;
+		}
+
+		List<InetSocketAddress> addrs = new ArrayList<>();
+		String addresses = getAddresses();
+		if (addresses != null) {
+			for (String s : addresses.split("[,;]")) {
+				String[] ss = s.split("[:/]");
+				if (ss.length > 1) {
+					try {
+						addrs.add(new InetSocketAddress(ss[0],
+								Integer.parseInt(ss[1])));
+					} catch (NumberFormatException e) {
+						// Ignored
+					}
+				}
+			}
+		}
+		Metric.setMaxTagCombinations(getMaxTagCombinations());
+		MetricClient.setBinary(isBinary());
+		MetricClient.setDictionary(isDictionary());
+		MetricClient.setTcp(isTcp());
+		MetricClient.setPacingWindow(getPacingWindow());
+		MetricClient.setMaxPacketsPerSecond(getMaxPacketsPerSecond());
+		MetricClient.setSpoolDir(getSpoolDir());
+		MetricClient.setReplicas(getReplicas());
+		MetricClient.setShardByTags(isShardByTags());
+		MetricClient.setGaugeInterval(getGaugeInterval());
+		MetricClient.setMaxPacketSize(isFrag() ?
+				MetricClient.MAX_PACKET_SIZE_FRAG : MetricClient.MAX_PACKET_SIZE);
+		MetricClient.startup(addrs.toArray(new InetSocketAddress[0]));
+		monitor = new ManagementMonitor(prefix + ".server", tagMap);
+		monitor.setTopThreads(getTopThreads());
+		Metric.registerSampler(monitor);
+		connectionsName = prefix + ".webapp.connections";
+		connectionsTagMap = tagMap;
+		Metric.registerGauge(connectionsName, connections::get, connectionsTagMap);
+	}
+
+	@Override
+	public void destroy() {
+		if (count.decrementAndGet() > 0) {
+			return;
+		}
+		Metric.unregisterGauge(connectionsName, connectionsTagMap);
+		Metric.unregisterSampler(monitor);
+		monitor.close();
+		MetricClient.shutdown();
+	}
+
+	@Override
+	public void doFilter(ServletRequest request, ServletResponse response,
+			FilterChain chain) throws IOException, ServletException {
+		long t = System.nanoTime();
+		if (!(request instanceof HttpServletRequest) ||
+				!(response instanceof HttpServletResponse)) {
+			chain.doFilter(request, response);
+			return;
+		}
+		HttpServletRequest req = (HttpServletRequest) request;
+		HttpServletResponse resp = (HttpServletResponse) response;
+		if (req.getDispatcherType() == DispatcherType.ASYNC) {
+			// Timed by the listener added in the initial dispatch,
+			// and written to the response wrapped there
+			chain.doFilter(request, response);
+			return;
+		}
+
+		String path = req.getServletPath();
+		path = path == null || path.isEmpty() ? "/" : path;
+		int pathLen;
+		if (truncateOverridden) {
+			path = truncatePath(path);
+			pathLen = path.length();
+		} else {
+			// Same as "truncatePath" but without a substring
+			int slash = path.indexOf('/', 1);
+			pathLen = slash < 0 ? path.length() : slash;
+		}
+
+		// Only wrapped if the request may go async, where the size and the first byte
+		// are counted, so requests through other chains keep the original objects
+		MetricResponse resp_ = null;
+		if (req.isAsyncSupported()) {
+			resp_ = new MetricResponse(resp);
+			request = new AsyncRequest(req, resp_);
+			response = resp_;
+		}
+		connections.incrementAndGet();
+		boolean async = false;
+		try {
+			chain.doFilter(request, response);
+			async = req.isAsyncStarted();
+		} finally {
+			if (async) {
+				req.getAsyncContext().addListener(new AsyncTiming(path,
+						pathLen, t, resp, resp_));
+			} else {
+				connections.decrementAndGet();
+				record(path, pathLen, resp, t);
+			}
+		}
+	}
+}
\ No newline at end of file
@@ -0,0 +1,68 @@
+package com.xqbase.metric.client;
+
+import java.net.InetSocketAddress;
+import java.util.Arrays;
+
+// Consistent hash ring of collectors, identified by configured "host:port",
+// so adding or removing a collector only moves the metrics next to it
+class MetricRing {
+	private static final int VIRTUAL_NODES = 160;
+
+	// Finalizer of MurmurHash3, spreads "String.hashCode" over the ring
+	static int mix(int hash) {
+		int h = hash;
+		h ^= h >>> 16;
+		h *= 0x85EBCA6B;
+		h ^= h >>> 13;
+		h *= 0xC2B2AE35;
+		h ^= h >>> 16;
+		return h;
+	}
+
+	private int[] hashes, nodes, picked;
+
+	MetricRing(InetSocketAddress[] addrs) {
+		long[] points = new long[addrs.length * VIRTUAL_NODES];
+		for (int i = 0; i < addrs.length; i ++) {
+			int h = (addrs[i].getHostString() + ":" + addrs[i].getPort()).hashCode();
+			for (int j = 0; j < VIRTUAL_NODES; j ++) {
+				points[i * VIRTUAL_NODES + j] = (long) mix(h * 31 + j) << 32 | i;
+			}
+		}
+		Arrays.sort(points);
+		hashes = new int[points.length];
+		nodes = new int[points.length];
+		for (int i = 0; i < points.length; i ++) {
+			hashes[i] = (int) (points[i] >> 32);
+			nodes[i] = (int) points[i];
+		}
+		picked = new int[addrs.length];
+	}
+
+	// Whether "node" is one of the first "replicas" collectors clockwise from "hash"
+	boolean routes(int hash, int replicas, int node) {
+		int i = Arrays.binarySearch(hashes, hash);
+		if (i < 0) {
+			i = -i - 1;
+		}
+		int found = 0;
+		for (int n = 0; n < hashes.length && found < replicas; n ++, i ++) {
+			int node_ = nodes[i % hashes.length];
+			boolean duplicated = false;
+			for (int j = 0; j < found; j ++) {
+				if (picked[j] == node_) {
+					duplicated = true;
+					break;
+				}
+			}
+			if (!duplicated) {
+				if (node_ == node) {
+					return true;
+				}
+				picked[found] = node_;
+				found ++;
+			}
+		}
+		return false;
+	}
+}
\ No newline at end of file
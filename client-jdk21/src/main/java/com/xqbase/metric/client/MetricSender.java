@@ -0,0 +1,366 @@
+package com.xqbase.metric.client;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+import com.xqbase.metric.common.Metric;
+
+// Delivers packets to one collector on its own virtual thread,
+// so a slow or unreachable collector does not delay the others
+class MetricSender implements Runnable {
+	// Packets of one flush, paced over "window" milliseconds, or not paced if -1
+	record Flush(int minute, byte[][] packets, int window) {}
+
+	private static final int MINUTE = 60000;
+	private static final int TCP_TIMEOUT = 10000;
+	// Flushes waiting for a stuck collector, the oldest ones are dropped beyond this
+	private static final int MAX_QUEUED = 16;
+	private static final Flush STOP = new Flush(0, new byte[0][], -1);
+
+	private String collector;
+	private volatile InetSocketAddress addr;
+	private boolean tcp;
+	private int maxPacketsPerSecond, replayRate;
+	private MetricSpool spool;
+	private LinkedBlockingQueue<Flush> queue = new LinkedBlockingQueue<>();
+	private Thread thread;
+
+	// Only accessed by "thread"
+	private DatagramChannel channel = null;
+	private ByteBuffer buffer = null;
+	private SocketChannel connection = null;
+	private InetSocketAddress connected = null;
+	// The connection is non-blocking and registered with its own selector
+	private SelectionKey key = null;
+	private ByteBuffer acks = ByteBuffer.allocate(256);
+	private byte[] packet = new byte[MetricClient.MAX_PACKET_SIZE];
+	// Frames of one flush, written to the connection at once
+	private byte[] frames = new byte[MetricClient.MAX_PACKET_SIZE];
+	private int framesLen = 0, frameCount = 0;
+	private int[] frameOffsets = new int[16];
+	private long nextReplay = 0;
+
+	MetricSender(InetSocketAddress addr, boolean tcp, int maxPacketsPerSecond,
+			MetricSpool spool, int replayRate) {
+		collector = addr.getHostString() + ":" + addr.getPort();
+		this.addr = addr;
+		this.tcp = tcp;
+		this.maxPacketsPerSecond = maxPacketsPerSecond;
+		this.spool = spool;
+		this.replayRate = replayRate;
+	}
+
+	void setAddress(InetSocketAddress addr) {
+		this.addr = addr;
+	}
+
+	void start() {
+		thread = Thread.ofVirtual().name("metric-sender-" + collector).start(this);
+	}
+
+	void add(Flush flush) {
+		if (queue.size() >= MAX_QUEUED) {
+			Flush dropped = queue.poll();
+			if (dropped != null) {
+				Metric.put("metric.packets.dropped", dropped.packets().length,
+						"collector", collector);
+			}
+		}
+		queue.add(flush);
+	}
+
+	// Waits until queued flushes are sent or "deadline", and then
+	// interrupts the thread, which spools what is not sent yet
+	void stop(long deadline) {
+		queue.add(STOP);
+		try {
+			if (!thread.join(Duration.ofMillis(Math.max(deadline -
+					System.currentTimeMillis(), 1)))) {
+				thread.interrupt();
+				thread.join(Duration.ofSeconds(1));
+			}
+		} catch (InterruptedException e) {
+			thread.interrupt();
+		}
+	}
+
+	@Override
+	public void run() {
+		try {
+			Flush flush;
+			while ((flush = queue.poll(1, TimeUnit.SECONDS)) != STOP) {
+				if (flush != null) {
+					send(flush);
+				}
+				if (spool != null) {
+					replay();
+				}
+			}
+		} catch (InterruptedException e) {
+			spoolQueued();
+		} catch (Error | RuntimeException e) {
+			e.printStackTrace();
+		} finally {
+			closeChannel();
+			closeConnection();
+			if (spool != null) {
+				spool.close();
+			}
+		}
+	}
+
+	private void spoolQueued() {
+		Flush flush;
+		while ((flush = queue.poll()) != null) {
+			if (flush == STOP || spool == null) {
+				continue;
+			}
+			for (byte[] b : flush.packets()) {
+				spool.add(flush.minute(), b, 0, b.length);
+			}
+		}
+	}
+
+	private void closeChannel() {
+		if (channel != null) {
+			try {
+				channel.close();
+			} catch (IOException e) {/**/}
+			channel = null;
+		}
+	}
+
+	private void closeConnection() {
+		if (connection != null) {
+			try {
+				key.selector().close();
+			} catch (IOException e) {/**/}
+			try {
+				connection.close();
+			} catch (IOException e) {/**/}
+			connection = null;
+			connected = null;
+			key = null;
+		}
+	}
+
+	private void send(Flush flush) {
+		InetSocketAddress addr_ = addr;
+		byte[][] packets = flush.packets();
+		if (tcp) {
+			for (byte[] b : packets) {
+				addFrame(b, b.length);
+			}
+			int acked = addr_.isUnresolved() ? 0 : sendFrames(addr_);
+			if (spool != null) {
+				for (int j = acked; j < packets.length; j ++) {
+					spool.add(flush.minute(), packets[j], 0, packets[j].length);
+				}
+			}
+			framesLen = frameCount = 0;
+			return;
+		}
+		if (addr_.isUnresolved()) {
+			return;
+		}
+		long interval = 0;
+		int sent = packets.length;
+		if (flush.window() >= 0) {
+			interval = (long) flush.window() * 1000000 / packets.length;
+			if (maxPacketsPerSecond > 0) {
+				interval = Math.max(interval, 1000000000L / maxPacketsPerSecond);
+			}
+			// Packets beyond the window, or half a minute if only limited by
+			// "maxPacketsPerSecond", are dropped, so this flush ends within the minute
+			long window = flush.window() > 0 ? flush.window() : MINUTE / 2;
+			if (interval > 0) {
+				sent = (int) Math.min(sent, (window * 1000000 + interval - 1) / interval);
+			}
+			if (sent < packets.length) {
+				Metric.put("metric.packets.dropped", packets.length - sent,
+						"collector", collector, "reason", "rate_limited");
+			}
+		}
+		long start = System.nanoTime();
+		try {
+			for (int j = 0; j < sent; j ++) {
+				long delay = start + j * interval - System.nanoTime();
+				if (delay > 0) {
+					LockSupport.parkNanos(delay);
+				}
+				sendDatagram(addr_, packets[j]);
+			}
+		} catch (IOException e) {
+			System.err.println(addr_ + ": " + e.getMessage());
+			// Reopen on the next flush
+			closeChannel();
+		}
+	}
+
+	// Blocks while the socket buffer is full, which only parks this virtual thread,
+	// so an unpaced burst is not dropped by the client
+	private void sendDatagram(InetSocketAddress addr_, byte[] b) throws IOException {
+		if (channel == null) {
+			channel = DatagramChannel.open();
+		}
+		if (buffer == null || buffer.capacity() < b.length) {
+			buffer = ByteBuffer.allocateDirect(Math.max(b.length,
+					MetricClient.MAX_PACKET_SIZE));
+		}
+		buffer.clear();
+		buffer.put(b);
+		buffer.flip();
+		channel.send(buffer, addr_);
+	}
+
+	private void addFrame(byte[] b, int len) {
+		if (frameCount == frameOffsets.length) {
+			frameOffsets = Arrays.copyOf(frameOffsets, frameCount * 2);
+		}
+		if (framesLen + 4 + len > frames.length) {
+			frames = Arrays.copyOf(frames,
+					Math.max(frames.length * 2, framesLen + 4 + len));
+		}
+		frameOffsets[frameCount] = framesLen;
+		frameCount ++;
+		frames[framesLen ++] = (byte) (len >>> 24);
+		frames[framesLen ++] = (byte) (len >>> 16);
+		frames[framesLen ++] = (byte) (len >>> 8);
+		frames[framesLen ++] = (byte) len;
+		System.arraycopy(b, 0, frames, framesLen, len);
+		framesLen += len;
+	}
+
+	private SocketChannel connect(InetSocketAddress addr_) throws IOException {
+		if (connection != null && !addr_.equals(connected)) {
+			// Re-resolved to another address
+			closeConnection();
+		}
+		if (connection == null) {
+			SocketChannel channel_ = SocketChannel.open();
+			Selector selector = null;
+			try {
+				channel_.socket().connect(addr_, TCP_TIMEOUT);
+				channel_.socket().setTcpNoDelay(true);
+				channel_.configureBlocking(false);
+				selector = Selector.open();
+				key = channel_.register(selector, SelectionKey.OP_READ);
+			} catch (IOException e) {
+				if (selector != null) {
+					selector.close();
+				}
+				channel_.close();
+				throw e;
+			}
+			connection = channel_;
+			connected = addr_;
+		}
+		return connection;
+	}
+
+	// Returns the number of acknowledged frames
+	private int sendFrames(InetSocketAddress addr_) {
+		int acked = 0;
+		// Resend unacknowledged frames once on a new connection,
+		// e.g. when the collector is restarted
+		for (int retry = 0; retry < 2 && acked < frameCount; retry ++) {
+			try {
+				SocketChannel channel_ = connect(addr_);
+				int offset = frameOffsets[acked];
+				ByteBuffer bb = ByteBuffer.wrap(frames, offset, framesLen - offset);
+				// Closed if neither written nor acknowledged within TCP_TIMEOUT,
+				// e.g. the collector stops reading, so the sender is never stuck
+				long deadline = System.currentTimeMillis() + TCP_TIMEOUT;
+				while (acked < frameCount) {
+					int written = bb.hasRemaining() ? channel_.write(bb) : 0;
+					acks.clear();
+					int read = channel_.read(acks);
+					if (read < 0) {
+						throw new IOException("Connection closed");
+					}
+					// One byte per frame
+					acked = Math.min(acked + read, frameCount);
+					long now = System.currentTimeMillis();
+					if (written > 0 || read > 0) {
+						deadline = now + TCP_TIMEOUT;
+						continue;
+					}
+					if (now >= deadline) {
+						throw new IOException("Timed out");
+					}
+					key.interestOps(bb.hasRemaining() ?
+							SelectionKey.OP_READ | SelectionKey.OP_WRITE : SelectionKey.OP_READ);
+					key.selector().select(deadline - now);
+					key.selector().selectedKeys().clear();
+				}
+			} catch (IOException e) {
+				System.err.println(addr_ + ": " + e.getMessage());
+				closeConnection();
+			}
+		}
+		return acked;
+	}
+
+	// Called after each poll but replays at most "replayRate" bytes per second
+	private void replay() {
+		long now = System.currentTimeMillis();
+		if (now < nextReplay) {
+			return;
+		}
+		nextReplay = now + 1000;
+		Metric.put("metric.spool.depth", spool.depth(), "collector", collector);
+		// Wait until the collector answers a flush
+		if (spool.isEmpty() || connection == null) {
+			spool.force();
+			return;
+		}
+		Metric.put("metric.spool.lag", now / MINUTE - spool.minute(spool.head()),
+				"collector", collector);
+		long pos = spool.head();
+		int bytes = 0;
+		while (pos < spool.tail() && bytes < replayRate) {
+			int len = spool.length(pos);
+			if (len < 0) {
+				System.err.println("Spool of " + collector + " corrupted");
+				spool.clear();
+				framesLen = frameCount = 0;
+				break;
+			}
+			if (len > MetricClient.MAX_FRAME_SIZE) {
+				// Rejected by collectors, so skipped once it is the head
+				if (frameCount > 0) {
+					break;
+				}
+				spool.removeTo(spool.next(pos));
+				Metric.put("metric.spool.dropped", 1, "collector", collector);
+				pos = spool.head();
+				continue;
+			}
+			if (len > packet.length) {
+				packet = new byte[len];
+			}
+			spool.read(pos, packet, len);
+			addFrame(packet, len);
+			bytes += len;
+			pos = spool.next(pos);
+		}
+		int acked = frameCount == 0 ? 0 : sendFrames(addr);
+		pos = spool.head();
+		for (int j = 0; j < acked; j ++) {
+			pos = spool.next(pos);
+		}
+		spool.removeTo(pos);
+		spool.force();
+		framesLen = frameCount = 0;
+	}
+}
\ No newline at end of file
@@ -0,0 +1,199 @@
+package com.xqbase.metric.client;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import jdk.jfr.consumer.RecordedClass;
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordingStream;
+
+import com.xqbase.metric.common.Metric;
+import com.xqbase.metric.common.MetricHandle;
+import com.xqbase.metric.common.MetricKey;
+
+// Streams low-overhead JFR events into metrics, all events are handled
+// in the thread of the recording stream, so no synchronization is needed
+public class JfrMonitor implements AutoCloseable {
+	private static final String OTHER = "__other__";
+	private static final int MINUTE = 60000;
+
+	private static double MS(Duration duration) {
+		return duration.toNanos() / 1000000d;
+	}
+
+	private static Map<String, String> getTagMap(String... tagPairs) {
+		Map<String, String> tagMap = new HashMap<>();
+		MetricKey.putTagMap(tagMap, tagPairs);
+		return tagMap;
+	}
+
+	// Durations tagged by the top classes of the current minute, others by "__other__"
+	private class TopClasses {
+		private String name;
+		private Map<String, long[]> durations = new HashMap<>();
+		private Set<String> top = new HashSet<>();
+		private Map<String, MetricHandle> handles = new HashMap<>();
+
+		TopClasses(String name) {
+			this.name = name;
+			Metric.enableSketch(name);
+		}
+
+		void record(RecordedClass clazz, Duration duration) {
+			String className = clazz == null ? OTHER : clazz.getName();
+			long[] total = durations.get(className);
+			if (total == null) {
+				total = new long[1];
+				durations.put(className, total);
+			}
+			total[0] += duration.toNanos();
+			// Classes are admitted before the first ranking
+			if (!top.contains(className) && top.size() < topClasses) {
+				top.add(className);
+			}
+			String tag = top.contains(className) ? className : OTHER;
+			MetricHandle handle = handles.get(tag);
+			if (handle == null) {
+				Map<String, String> tagMap_ = new HashMap<>(tagMap);
+				tagMap_.put("class", tag);
+				handle = Metric.handle(name, tagMap_);
+				handles.put(tag, handle);
+			}
+			handle.record(MS(duration));
+		}
+
+		void rank(boolean reset) {
+			List<Map.Entry<String, long[]>> entries = new ArrayList<>(durations.entrySet());
+			entries.sort((a, b) -> Long.compare(b.getValue()[0], a.getValue()[0]));
+			top.clear();
+			for (int i = 0; i < entries.size() && i < topClasses; i ++) {
+				top.add(entries.get(i).getKey());
+			}
+			handles.keySet().removeIf(tag -> !tag.equals(OTHER) && !top.contains(tag));
+			if (reset) {
+				durations.clear();
+			}
+		}
+	}
+
+	private String allocation, safepoint, deoptimizations;
+	private Map<String, String> tagMap;
+	private Duration monitorEnterThreshold = Duration.ofMillis(20);
+	private Duration threadParkThreshold = Duration.ofMillis(20);
+	private int topClasses = 10;
+	private TopClasses monitorEnter, threadPark;
+	private RecordingStream rs = null;
+
+	// Only accessed by the stream thread
+	private long allocated = 0, lastFlush = System.nanoTime();
+	private int lastMinute = (int) (System.currentTimeMillis() / MINUTE);
+	private long safepointId = -1;
+	private Instant safepointStart = null;
+
+	public JfrMonitor(String prefix, String... tagPairs) {
+		this(prefix, getTagMap(tagPairs));
+	}
+
+	public JfrMonitor(String prefix, Map<String, String> tagMap) {
+		allocation = prefix + ".allocation.mb_per_second";
+		safepoint = prefix + ".safepoint.time";
+		deoptimizations = prefix + ".deoptimizations";
+		this.tagMap = tagMap;
+		Metric.enableSketch(safepoint);
+		monitorEnter = new TopClasses(prefix + ".monitor_enter.time");
+		threadPark = new TopClasses(prefix + ".thread_park.time");
+	}
+
+	// Contended monitor enters shorter than this are not recorded by JFR
+	public void setMonitorEnterThreshold(Duration monitorEnterThreshold) {
+		this.monitorEnterThreshold = monitorEnterThreshold;
+	}
+
+	// Parks shorter than this are not recorded by JFR
+	public void setThreadParkThreshold(Duration threadParkThreshold) {
+		this.threadParkThreshold = threadParkThreshold;
+	}
+
+	// Monitor and parked classes beyond the top ones are tagged "__other__"
+	public void setTopClasses(int topClasses) {
+		this.topClasses = topClasses;
+	}
+
+	private void put(String name, double value, String... tagPairs) {
+		Map<String, String> tagMap_ = new HashMap<>(tagMap);
+		MetricKey.putTagMap(tagMap_, tagPairs);
+		Metric.put(name, value, tagMap_);
+	}
+
+	private void onSafepointBegin(RecordedEvent event) {
+		safepointId = event.getLong("safepointId");
+		safepointStart = event.getStartTime();
+	}
+
+	// From the beginning of synchronization to the end of the safepoint
+	private void onSafepointEnd(RecordedEvent event) {
+		if (event.getLong("safepointId") != safepointId) {
+			return;
+		}
+		put(safepoint, MS(Duration.between(safepointStart, event.getEndTime())));
+		safepointId = -1;
+	}
+
+	// May be called several times in a second, some with a lot of events just after another
+	private void onFlush() {
+		long now = System.nanoTime();
+		if (now - lastFlush >= 1000000000L) {
+			put(allocation, allocated / 1048576d * 1000000000d / (now - lastFlush));
+			allocated = 0;
+			lastFlush = now;
+		}
+		int minute = (int) (System.currentTimeMillis() / MINUTE);
+		boolean reset = minute != lastMinute;
+		lastMinute = minute;
+		monitorEnter.rank(reset);
+		threadPark.rank(reset);
+	}
+
+	public synchronized void start() {
+		if (rs != null) {
+			return;
+		}
+		rs = new RecordingStream();
+		rs.enable("jdk.ObjectAllocationSample").with("throttle", "150/s").
+				withoutStackTrace();
+		rs.enable("jdk.SafepointBegin");
+		rs.enable("jdk.SafepointEnd");
+		rs.enable("jdk.JavaMonitorEnter").withThreshold(monitorEnterThreshold).
+				withoutStackTrace();
+		rs.enable("jdk.ThreadPark").withThreshold(threadParkThreshold).
+				withoutStackTrace();
+		rs.enable("jdk.Deoptimization").withoutStackTrace();
+		rs.onEvent("jdk.ObjectAllocationSample", event ->
+				allocated += event.getLong("weight"));
+		rs.onEvent("jdk.SafepointBegin", this::onSafepointBegin);
+		rs.onEvent("jdk.SafepointEnd", this::onSafepointEnd);
+		rs.onEvent("jdk.JavaMonitorEnter", event ->
+				monitorEnter.record(event.getClass("monitorClass"), event.getDuration()));
+		rs.onEvent("jdk.ThreadPark", event ->
+				threadPark.record(event.getClass("parkedClass"), event.getDuration()));
+		rs.onEvent("jdk.Deoptimization", event ->
+				put(deoptimizations, 1, "reason", "" + event.getString("reason")));
+		rs.onFlush(this::onFlush);
+		rs.onError(e -> System.err.println("JFR: " + e.getMessage()));
+		rs.startAsync();
+	}
+
+	@Override
+	public synchronized void close() {
+		if (rs != null) {
+			rs.close();
+			rs = null;
+		}
+	}
+}
\ No newline at end of file
@@ -1,28 +1,32 @@
 package com.xqbase.metric.client;
 
-import java.io.ByteArrayOutputStream;
+import java.io.File;
 import java.io.IOException;
-import java.net.DatagramPacket;
-import java.net.DatagramSocket;
-import java.net.InetAddress;
 import java.net.InetSocketAddress;
-import java.net.URLEncoder;
-import java.util.List;
-import java.util.Map;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.Arrays;
 import java.util.Random;
 import java.util.concurrent.ScheduledThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
-import java.util.zip.DeflaterOutputStream;
+import java.util.concurrent.locks.LockSupport;
+import java.util.zip.Deflater;
 
 import com.xqbase.metric.common.Metric;
-import com.xqbase.metric.common.MetricEntry;
+import com.xqbase.metric.common.MetricBatch;
 
 public class MetricClient {
 	public static final int MAX_PACKET_SIZE_FRAG = 65535 - 28;
 	public static final int MAX_PACKET_SIZE = 1500 - 28;
+	// Deflated packet in a TCP frame, after the 4-byte length
+	public static final int MAX_FRAME_SIZE = 65536;
 
 	private static final int MINUTE = 60000;
+	private static final int TCP_TIMEOUT = 10000;
 
 	private static int maxPacketSize = MAX_PACKET_SIZE;
 
@@ -30,67 +34,555 @@ public class MetricClient {
 		MetricClient.maxPacketSize = maxPacketSize;
 	}
 
-	private static String encode(String s) {
+	private static boolean binary = false;
+
+	// Binary rows are smaller and faster to parse, but need upgraded collectors
+	public static void setBinary(boolean binary) {
+		MetricClient.binary = binary;
+	}
+
+	private static boolean dictionary = false;
+
+	// The preset dictionary helps small packets, but needs upgraded collectors
+	public static void setDictionary(boolean dictionary) {
+		MetricClient.dictionary = dictionary;
+	}
+
+	private static boolean tcp = false;
+
+	// Packets are sent to collectors as length-prefixed frames over persistent
+	// connections, and each frame is acknowledged, which needs upgraded collectors
+	public static void setTcp(boolean tcp) {
+		MetricClient.tcp = tcp;
+	}
+
+	private static int pacingWindow = 0;
+
+	// UDP packets of a batch are spread over "pacingWindow" milliseconds instead of
+	// sent in one burst, which may overflow the receive buffer of a collector
+	public static void setPacingWindow(int pacingWindow) {
+		MetricClient.pacingWindow = Math.max(Math.min(pacingWindow, MINUTE / 2), 0);
+	}
+
+	private static int maxPacketsPerSecond = 0;
+
+	// UDP packets per second per collector, 0 for unlimited
+	public static void setMaxPacketsPerSecond(int maxPacketsPerSecond) {
+		MetricClient.maxPacketsPerSecond = maxPacketsPerSecond;
+	}
+
+	// Paced packets of a batch are sent within this many milliseconds,
+	// half a minute if only "maxPacketsPerSecond" is set
+	private static int pacingBudget() {
+		return pacingWindow > 0 || maxPacketsPerSecond == 0 ? pacingWindow : MINUTE / 2;
+	}
+
+	private static String spoolDir = null;
+
+	// TCP packets not acknowledged by a collector are kept in "<spoolDir>/<host>_<port>.spool",
+	// and replayed after the collector answers again
+	public static void setSpoolDir(String spoolDir) {
+		MetricClient.spoolDir = spoolDir;
+	}
+
+	private static int spoolSize = 16777216;
+
+	public static void setSpoolSize(int spoolSize) {
+		MetricClient.spoolSize = spoolSize;
+	}
+
+	private static int replayRate = 262144;
+
+	// Bytes replayed per second, so a recovering collector is not flooded
+	public static void setReplayRate(int replayRate) {
+		MetricClient.replayRate = replayRate;
+	}
+
+	private static int replicas = 0;
+
+	// Each metric is sent to "replicas" collectors on a consistent hash ring,
+	// instead of all collectors, 0 (default) or not less than collectors for all
+	public static void setReplicas(int replicas) {
+		MetricClient.replicas = replicas;
+	}
+
+	private static boolean shardByTags = false;
+
+	// Shard by name and tags, instead of name only which keeps a metric on the same collectors
+	public static void setShardByTags(boolean shardByTags) {
+		MetricClient.shardByTags = shardByTags;
+	}
+
+	private static MetricRing ring = null;
+	private static int addressTtl = MINUTE;
+
+	// Collector addresses are resolved in background every "addressTtl" milliseconds
+	public static void setAddressTtl(int addressTtl) {
+		MetricClient.addressTtl = addressTtl;
+	}
+
+	private static int gaugeInterval = 5000;
+
+	// Gauges registered in "Metric" are sampled every "gaugeInterval" milliseconds
+	public static void setGaugeInterval(int gaugeInterval) {
+		MetricClient.gaugeInterval = Math.max(Math.min(gaugeInterval, MINUTE), 100);
+	}
+
+	private static volatile InetSocketAddress[] resolved = null;
+
+	private static void resolve(InetSocketAddress[] addrs) {
+		InetSocketAddress[] lastResolved = resolved;
+		InetSocketAddress[] newResolved = new InetSocketAddress[addrs.length];
+		for (int i = 0; i < addrs.length; i ++) {
+			InetSocketAddress addr = new InetSocketAddress(addrs[i].getHostString(),
+					addrs[i].getPort());
+			// Keep the last resolved address if the lookup fails
+			newResolved[i] = addr.isUnresolved() && lastResolved != null ?
+					lastResolved[i] : addr;
+		}
+		resolved = newResolved;
+	}
+
+	// Only accessed by the sending thread
+	private static DatagramChannel channel = null;
+	private static ByteBuffer buffer = null;
+	private static Deflater deflater = null;
+	private static MetricEncoder encoder = null;
+	// Rows are deflated into "packet" directly, and then copied into "buffer"
+	private static byte[] packet = new byte[MAX_PACKET_SIZE];
+	private static int packetLen = 0;
+	// Frames of one flush, written to each connection at once
+	private static byte[] frames = new byte[MAX_PACKET_SIZE];
+	private static int framesLen = 0, frameCount = 0;
+	private static int[] frameOffsets = new int[16];
+	private static SocketChannel[] connections = null;
+	private static InetSocketAddress[] connected = null;
+	// Non-blocking connections, each registered with its own selector
+	private static SelectionKey[] keys = null;
+	private static ByteBuffer acks = ByteBuffer.allocate(256);
+	private static volatile MetricSpool[] spools = null;
+
+	private static void startPacket() {
+		if (deflater == null) {
+			deflater = new Deflater();
+		} else {
+			deflater.reset();
+		}
+		if (dictionary) {
+			deflater.setDictionary(MetricDictionary.getDefault());
+		}
+		encoder.reset();
+		packetLen = 0;
+	}
+
+	private static void ensurePacket() {
+		if (packetLen == packet.length) {
+			packet = Arrays.copyOf(packet, packet.length * 2);
+		}
+	}
+
+	private static void deflate(byte[] b, int len) {
+		deflater.setInput(b, 0, len);
+		// A full output buffer may leave pending output
+		do {
+			ensurePacket();
+			packetLen += deflater.deflate(packet, packetLen,
+					packet.length - packetLen, Deflater.SYNC_FLUSH);
+		} while (packetLen == packet.length);
+	}
+
+	private static void finishPacket() {
+		deflater.finish();
+		while (!deflater.finished()) {
+			ensurePacket();
+			packetLen += deflater.deflate(packet, packetLen, packet.length - packetLen);
+		}
+	}
+
+	private static void closeChannel() {
+		if (channel != null) {
+			try {
+				channel.close();
+			} catch (IOException e) {/**/}
+			channel = null;
+		}
+	}
+
+	private static void closeConnection(int i) {
+		if (connections[i] != null) {
+			try {
+				keys[i].selector().close();
+			} catch (IOException e) {/**/}
+			try {
+				connections[i].close();
+			} catch (IOException e) {/**/}
+			connections[i] = null;
+			connected[i] = null;
+			keys[i] = null;
+		}
+	}
+
+	private static void closeConnections() {
+		if (connections != null) {
+			for (int i = 0; i < connections.length; i ++) {
+				closeConnection(i);
+			}
+			connections = null;
+			connected = null;
+			keys = null;
+		}
+	}
+
+	private static void openSpools(InetSocketAddress[] addrs) {
+		File dir = new File(spoolDir);
+		dir.mkdirs();
+		spools = new MetricSpool[addrs.length];
+		for (int i = 0; i < addrs.length; i ++) {
+			try {
+				spools[i] = new MetricSpool(new File(dir, addrs[i].getHostString() +
+						"_" + addrs[i].getPort() + ".spool"), spoolSize);
+			} catch (IOException e) {
+				System.err.println(e.getMessage());
+			}
+		}
+	}
+
+	private static void forceSpools() {
+		MetricSpool[] spools_ = spools;
+		if (spools_ == null) {
+			return;
+		}
+		for (MetricSpool spool : spools_) {
+			if (spool != null) {
+				spool.force();
+			}
+		}
+	}
+
+	private static void closeSpools() {
+		if (spools != null) {
+			for (MetricSpool spool : spools) {
+				if (spool != null) {
+					spool.close();
+				}
+			}
+			spools = null;
+		}
+	}
+
+	private static void addFrame() {
+		if (frameCount == frameOffsets.length) {
+			frameOffsets = Arrays.copyOf(frameOffsets, frameCount * 2);
+		}
+		if (framesLen + 4 + packetLen > frames.length) {
+			frames = Arrays.copyOf(frames,
+					Math.max(frames.length * 2, framesLen + 4 + packetLen));
+		}
+		frameOffsets[frameCount] = framesLen;
+		frameCount ++;
+		frames[framesLen ++] = (byte) (packetLen >>> 24);
+		frames[framesLen ++] = (byte) (packetLen >>> 16);
+		frames[framesLen ++] = (byte) (packetLen >>> 8);
+		frames[framesLen ++] = (byte) packetLen;
+		System.arraycopy(packet, 0, frames, framesLen, packetLen);
+		framesLen += packetLen;
+	}
+
+	private static SocketChannel connect(int i,
+			InetSocketAddress addr) throws IOException {
+		if (connections[i] != null && !addr.equals(connected[i])) {
+			// Re-resolved to another address
+			closeConnection(i);
+		}
+		if (connections[i] == null) {
+			SocketChannel channel = SocketChannel.open();
+			Selector selector = null;
+			try {
+				channel.socket().connect(addr, TCP_TIMEOUT);
+				channel.socket().setTcpNoDelay(true);
+				channel.configureBlocking(false);
+				selector = Selector.open();
+				keys[i] = channel.register(selector, SelectionKey.OP_READ);
+			} catch (IOException e) {
+				if (selector != null) {
+					selector.close();
+				}
+				channel.close();
+				throw e;
+			}
+			connections[i] = channel;
+			connected[i] = addr;
+		}
+		return connections[i];
+	}
+
+	// Returns the number of acknowledged frames
+	private static int sendFrames(int i, InetSocketAddress addr) {
+		int acked = 0;
+		// Resend unacknowledged frames once on a new connection,
+		// e.g. when the collector is restarted
+		for (int retry = 0; retry < 2 && acked < frameCount; retry ++) {
+			try {
+				SocketChannel channel = connect(i, addr);
+				SelectionKey key = keys[i];
+				int offset = frameOffsets[acked];
+				ByteBuffer bb = ByteBuffer.wrap(frames, offset, framesLen - offset);
+				// Closed if neither written nor acknowledged within TCP_TIMEOUT,
+				// e.g. the collector stops reading, so the timer is never stuck
+				long deadline = System.currentTimeMillis() + TCP_TIMEOUT;
+				while (acked < frameCount) {
+					int written = bb.hasRemaining() ? channel.write(bb) : 0;
+					acks.clear();
+					int read = channel.read(acks);
+					if (read < 0) {
+						throw new IOException("Connection closed");
+					}
+					// One byte per frame
+					acked = Math.min(acked + read, frameCount);
+					long now = System.currentTimeMillis();
+					if (written > 0 || read > 0) {
+						deadline = now + TCP_TIMEOUT;
+						continue;
+					}
+					if (now >= deadline) {
+						throw new IOException("Timed out");
+					}
+					key.interestOps(bb.hasRemaining() ?
+							SelectionKey.OP_READ | SelectionKey.OP_WRITE : SelectionKey.OP_READ);
+					key.selector().select(deadline - now);
+					key.selector().selectedKeys().clear();
+				}
+			} catch (IOException e) {
+				System.err.println(addr + ": " + e.getMessage());
+				closeConnection(i);
+			}
+		}
+		return acked;
+	}
+
+	private static void sendFrames(InetSocketAddress[] addrs,
+			int target, int minute) {
+		if (connections == null || connections.length != addrs.length) {
+			closeConnections();
+			connections = new SocketChannel[addrs.length];
+			connected = new InetSocketAddress[addrs.length];
+			keys = new SelectionKey[addrs.length];
+		}
+		for (int i = 0; i < addrs.length; i ++) {
+			if (target >= 0 && i != target) {
+				continue;
+			}
+			int acked = addrs[i].isUnresolved() ? 0 : sendFrames(i, addrs[i]);
+			MetricSpool spool = spools == null ? null : spools[i];
+			if (spool == null) {
+				continue;
+			}
+			for (int j = acked; j < frameCount; j ++) {
+				int offset = frameOffsets[j] + 4;
+				int end = j + 1 < frameCount ? frameOffsets[j + 1] : framesLen;
+				spool.add(minute, frames, offset, end - offset);
+			}
+		}
+		framesLen = frameCount = 0;
+	}
+
+	private static void replay() {
+		InetSocketAddress[] addrs = resolved;
+		if (spools == null || addrs == null) {
+			return;
+		}
+		int now = (int) (System.currentTimeMillis() / MINUTE);
+		for (int i = 0; i < spools.length; i ++) {
+			MetricSpool spool = spools[i];
+			if (spool == null) {
+				continue;
+			}
+			String collector = addrs[i].getHostString() + ":" + addrs[i].getPort();
+			Metric.put("metric.spool.depth", spool.depth(), "collector", collector);
+			// Wait until the collector answers a flush
+			if (spool.isEmpty() || connections == null || connections[i] == null) {
+				continue;
+			}
+			Metric.put("metric.spool.lag", now - spool.minute(spool.head()),
+					"collector", collector);
+			long pos = spool.head();
+			int bytes = 0;
+			while (pos < spool.tail() && bytes < replayRate) {
+				int len = spool.length(pos);
+				if (len < 0) {
+					System.err.println("Spool of " + collector + " corrupted");
+					spool.clear();
+					framesLen = frameCount = 0;
+					break;
+				}
+				if (len > MAX_FRAME_SIZE) {
+					// Rejected by collectors, so skipped once it is the head
+					if (frameCount > 0) {
+						break;
+					}
+					spool.removeTo(spool.next(pos));
+					Metric.put("metric.spool.dropped", 1, "collector", collector);
+					pos = spool.head();
+					continue;
+				}
+				if (len > packet.length) {
+					packet = new byte[len];
+				}
+				spool.read(pos, packet, len);
+				packetLen = len;
+				addFrame();
+				bytes += len;
+				pos = spool.next(pos);
+			}
+			int acked = frameCount == 0 ? 0 : sendFrames(i, addrs[i]);
+			pos = spool.head();
+			for (int j = 0; j < acked; j ++) {
+				pos = spool.next(pos);
+			}
+			spool.removeTo(pos);
+			framesLen = frameCount = 0;
+		}
+	}
+
+	private static void send(InetSocketAddress[] addrs, int target,
+			byte[] b, int off, int len) throws IOException {
+		if (channel == null) {
+			channel = DatagramChannel.open();
+		}
+		if (buffer == null || buffer.capacity() < len) {
+			buffer = ByteBuffer.allocateDirect(Math.max(len, maxPacketSize));
+		}
+		buffer.clear();
+		buffer.put(b, off, len);
+		buffer.flip();
+		for (int i = 0; i < addrs.length; i ++) {
+			if ((target < 0 || i == target) && !addrs[i].isUnresolved()) {
+				buffer.rewind();
+				channel.send(buffer, addrs[i]);
+			}
+		}
+	}
+
+	// Packets are kept as frames if sent later
+	private static void send(InetSocketAddress[] addrs,
+			int target, boolean paced) throws IOException {
+		if (tcp && packetLen > MAX_FRAME_SIZE) {
+			// Only a single huge row, which would be rejected by collectors
+			Metric.put("metric.packets.dropped", 1, "reason", "oversized");
+		} else if (tcp || paced) {
+			addFrame();
+		} else {
+			send(addrs, target, packet, 0, packetLen);
+		}
+	}
+
+	private static void sendPaced(InetSocketAddress[] addrs,
+			int target, int window) {
+		// Spread over the window, or only limited by "maxPacketsPerSecond"
+		long interval = pacingWindow > 0 ? (long) window * 1000000 / frameCount : 0;
+		if (maxPacketsPerSecond > 0) {
+			interval = Math.max(interval, 1000000000L / maxPacketsPerSecond);
+		}
+		// Packets beyond the window are dropped, so the timer is not held
+		// into the next flush, and replays and samples are not delayed long
+		int sent = interval == 0 ? frameCount : (int) Math.min(frameCount,
+				((long) Math.max(window, 1) * 1000000 + interval - 1) / interval);
+		if (sent < frameCount) {
+			Metric.put("metric.packets.dropped", frameCount - sent, "reason", "rate_limited");
+		}
+		long start = System.nanoTime();
 		try {
-			return URLEncoder.encode(s, "UTF-8");
+			for (int j = 0; j < sent; j ++) {
+				long delay = start + j * interval - System.nanoTime();
+				if (delay > 0) {
+					LockSupport.parkNanos(delay);
+				}
+				int offset = frameOffsets[j] + 4;
+				int end = j + 1 < frameCount ? frameOffsets[j + 1] : framesLen;
+				send(addrs, target, frames, offset, end - offset);
+			}
 		} catch (IOException e) {
-			throw new RuntimeException(e);
+			System.err.println(e.getMessage());
+			closeChannel();
 		}
+		framesLen = frameCount = 0;
 	}
 
-	private static void send(DatagramSocket socket,
-			InetSocketAddress[] addrs, byte[] b) throws IOException {
-		for (InetSocketAddress addr : addrs) {
-			// Resolve "addr" every time
-			DatagramPacket packet = new DatagramPacket(b, b.length,
-					InetAddress.getByName(addr.getHostString()), addr.getPort());
-			socket.send(packet);
+	private static void send(InetSocketAddress[] addrs, int minute,
+			MetricBatch metrics) {
+		if (encoder == null || encoder.isBinary() != binary) {
+			encoder = new MetricEncoder(binary);
+		}
+		if (resolved == null) {
+			resolve(addrs);
+		}
+		InetSocketAddress[] addrs_ = resolved;
+		// Not paced when flushed by "shutdown"
+		boolean paced = timer != null && (pacingWindow > 0 || maxPacketsPerSecond > 0);
+		if (ring == null) {
+			send(addrs_, -1, minute, metrics, paced ? pacingBudget() : -1);
+		} else {
+			// Collectors are sent one by one, each in its share of the window
+			for (int i = 0; i < addrs_.length; i ++) {
+				send(addrs_, i, minute, metrics,
+						paced ? pacingBudget() / addrs_.length : -1);
+			}
 		}
 	}
 
-	private static void send(InetSocketAddress[] addrs, int minute,
-			List<MetricEntry> metrics) {
-		ByteArrayOutputStream baos = new ByteArrayOutputStream();
-		DeflaterOutputStream dos = new DeflaterOutputStream(baos, true);
-		try (DatagramSocket socket = new DatagramSocket()) {
-			for (MetricEntry metric : metrics) {
-				StringBuilder row = new StringBuilder();
-				row.append(encode(metric.getName())).append('/').
-						append(minute).append('/').
-						append(metric.getCount()).append('/').
-						append(metric.getSum()).append('/').
-						append(metric.getMax()).append('/').
-						append(metric.getMin()).append('/').
-						append(metric.getSqr());
-				Map<String, String> tagMap = metric.getTagMap();
-				if (!tagMap.isEmpty()) {
-					int question = row.length();
-					tagMap.forEach((key, value) -> {
-						row.append('&').append(encode(key)).
-								append('=').append(encode(value));
-					});
-					row.setCharAt(question, '?');
+	// Sends the rows routed to collector "target", or all rows to all collectors if -1
+	private static void send(InetSocketAddress[] addrs, int target,
+			int minute, MetricBatch metrics, int window) {
+		int maxPacketSize_ = tcp ? MAX_FRAME_SIZE : maxPacketSize;
+		try {
+			startPacket();
+			int rows = 0;
+			for (int i = 0; i < metrics.size(); i ++) {
+				if (target >= 0 && !ring.routes(MetricRing.mix(shardByTags ?
+						metrics.getKey(i).hashCode() : metrics.getName(i).hashCode()),
+						replicas, target)) {
+					continue;
 				}
-				if (baos.size() + row.length() + 10 > maxPacketSize) {
-					dos.close();
-					send(socket, addrs, baos.toByteArray());
-					baos.reset();
-					dos = new DeflaterOutputStream(baos, true);
+				int len = encoder.encode(metrics, i, minute);
+				if (rows > 0 && packetLen + len + 10 > maxPacketSize_) {
+					finishPacket();
+					send(addrs, target, window >= 0);
+					// Strings of the last packet are unknown in the new one
+					startPacket();
+					rows = 0;
+					len = encoder.encode(metrics, i, minute);
 				}
-				dos.write(row.toString().getBytes());
-				dos.write((byte) '\n');
-				dos.flush();
+				deflate(encoder.array(), len);
+				rows ++;
+			}
+			if (rows > 0) {
+				finishPacket();
+				send(addrs, target, window >= 0);
 			}
-			dos.close();
-			send(socket, addrs, baos.toByteArray());
 		} catch (IOException e) {
 			System.err.println(e.getMessage());
+			// Reopen on the next flush
+			closeChannel();
+		}
+		if (frameCount == 0) {
+			return;
+		}
+		if (tcp) {
+			sendFrames(addrs, target, minute);
+		} else {
+			sendPaced(addrs, target, window);
 		}
 	}
 
 	private static volatile ScheduledThreadPoolExecutor timer = null;
+	// Not resolved by "timer", so a slow lookup does not delay flushes
+	private static ScheduledThreadPoolExecutor resolver = null;
+	// Spools are synced to disk here, so a slow disk does not delay flushes either
+	private static ScheduledThreadPoolExecutor syncer = null;
 	private static volatile Runnable scheduled = null;
 	private static Runnable command;
+	// Sent with a random delay, so do not reuse the batch of the last minute
+	private static MetricBatch[] batches = {new MetricBatch(), new MetricBatch()};
 
 	public static synchronized void startup(InetSocketAddress... addrs) {
 		if (timer != null) {
@@ -102,7 +594,8 @@ public class MetricClient {
 		command = () -> {
 			try {
 				int minute = now.incrementAndGet();
-				List<MetricEntry> metrics = Metric.removeAll();
+				MetricBatch metrics = batches[minute & 1];
+				Metric.removeAll(metrics);
 				if (metrics.isEmpty()) {
 					return;
 				}
@@ -119,31 +612,90 @@ public class MetricClient {
 					}
 				};
 				scheduled = scheduled_;
-				timer.schedule(scheduled_,
-						random.nextInt(MINUTE), TimeUnit.MILLISECONDS);
+				// Paced sending ends within the minute
+				timer.schedule(scheduled_, random.nextInt(MINUTE - pacingBudget()),
+						TimeUnit.MILLISECONDS);
 			} catch (Error | RuntimeException e) {
 				e.printStackTrace();
 			}
 		};
+		if (tcp && spoolDir != null) {
+			openSpools(addrs);
+		}
+		ring = replicas > 0 && replicas < addrs.length ? new MetricRing(addrs) : null;
 		timer = new ScheduledThreadPoolExecutor(1);
 		timer.setExecuteExistingDelayedTasksAfterShutdownPolicy(false);
 		timer.scheduleAtFixedRate(command,
 				MINUTE - start % MINUTE, MINUTE, TimeUnit.MILLISECONDS);
+		resolver = new ScheduledThreadPoolExecutor(1, r -> {
+			Thread thread = new Thread(r, "metric-resolver");
+			thread.setDaemon(true);
+			return thread;
+		});
+		resolver.scheduleWithFixedDelay(() -> resolve(addrs),
+				0, addressTtl, TimeUnit.MILLISECONDS);
+		if (spools != null) {
+			timer.scheduleWithFixedDelay(() -> {
+				try {
+					replay();
+				} catch (Error | RuntimeException e) {
+					e.printStackTrace();
+				}
+			}, 1, 1, TimeUnit.SECONDS);
+			syncer = new ScheduledThreadPoolExecutor(1, r -> {
+				Thread thread = new Thread(r, "metric-spool");
+				thread.setDaemon(true);
+				return thread;
+			});
+			syncer.scheduleWithFixedDelay(() -> {
+				try {
+					forceSpools();
+				} catch (Error | RuntimeException e) {
+					e.printStackTrace();
+				}
+			}, 1, 1, TimeUnit.SECONDS);
+		}
+		// Sampled between sends, and with a fixed delay, so samples due
+		// during a paced or TCP send are not taken in a burst afterwards
+		timer.scheduleWithFixedDelay(() -> {
+			try {
+				Metric.sample();
+			} catch (Error | RuntimeException e) {
+				e.printStackTrace();
+			}
+		}, gaugeInterval, gaugeInterval, TimeUnit.MILLISECONDS);
 	}
 
 	public static synchronized void shutdown() {
 		if (timer == null) {
 			return;
 		}
+		resolver.shutdown();
 		timer.shutdown();
+		if (syncer != null) {
+			syncer.shutdown();
+		}
 		try {
+			while (!resolver.awaitTermination(1, TimeUnit.SECONDS)) {/**/}
 			while (!timer.awaitTermination(1, TimeUnit.SECONDS)) {/**/}
+			// Stopped before spools are closed
+			while (syncer != null && !syncer.awaitTermination(1, TimeUnit.SECONDS)) {/**/}
 		} catch (InterruptedException e) {/**/}
+		resolver = null;
 		timer = null;
+		syncer = null;
 		if (scheduled != null) {
 			scheduled.run();
 			scheduled = null;
 		}
 		command.run();
+		closeChannel();
+		closeConnections();
+		closeSpools();
+		if (deflater != null) {
+			deflater.end();
+			deflater = null;
+		}
+		resolved = null;
 	}
 }
\ No newline at end of file
@@ -0,0 +1,157 @@
+package com.xqbase.metric.client;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.xqbase.metric.common.MetricSketch;
+
+// Reads rows written by "MetricClient" in the binary format, row by row
+public class MetricDecoder {
+	// Text rows start with a url-encoded name, which never has the highest bit set
+	public static final int MAGIC = 0x81;
+
+	public static boolean isBinary(byte[] b, int off, int len) {
+		return len > 0 && (b[off] & 0xFF) == MAGIC;
+	}
+
+	private byte[] b;
+	private int pos, end;
+	private List<String> dict = new ArrayList<>();
+
+	private String name;
+	private int time;
+	private long count;
+	private double sum, max, min, sqr;
+	private MetricSketch sketch;
+	private Map<String, String> tagMap;
+
+	public MetricDecoder(byte[] b, int off, int len) {
+		this.b = b;
+		// Skip magic
+		pos = off + 1;
+		end = off + len;
+	}
+
+	private long readVarint() throws IOException {
+		long l = 0;
+		for (int shift = 0; shift < 64; shift += 7) {
+			if (pos >= end) {
+				throw new IOException("Truncated varint");
+			}
+			int c = b[pos ++];
+			l |= (long) (c & 0x7F) << shift;
+			if ((c & 0x80) == 0) {
+				return l;
+			}
+		}
+		throw new IOException("Malformed varint");
+	}
+
+	private int readLength() throws IOException {
+		long l = readVarint();
+		// A 10-byte varint may be negative
+		if (l < 0 || l > end - pos) {
+			throw new IOException("Length " + l + " exceeds packet");
+		}
+		return (int) l;
+	}
+
+	private double readDouble() throws IOException {
+		return Double.longBitsToDouble(Long.reverseBytes(readVarint()));
+	}
+
+	private String readString() throws IOException {
+		long index = readVarint();
+		if (index != 0) {
+			if (index < 0 || index > dict.size()) {
+				throw new IOException("Unknown string #" + index);
+			}
+			return dict.get((int) index - 1);
+		}
+		int len = readLength();
+		String s = new String(b, pos, len, StandardCharsets.UTF_8);
+		pos += len;
+		dict.add(s);
+		return s;
+	}
+
+	// Returns false at the end of packet
+	public boolean next() throws IOException {
+		if (pos >= end) {
+			return false;
+		}
+		name = readString();
+		time = (int) readVarint();
+		count = readVarint();
+		sum = readDouble();
+		max = readDouble();
+		min = readDouble();
+		sqr = readDouble();
+		int length = readLength();
+		if (length == 0) {
+			sketch = null;
+		} else {
+			long[] values = new long[length];
+			long total = 0;
+			for (int i = 0; i < length; i ++) {
+				values[i] = readVarint();
+				// All but the lowest index are counts, which must not be negative
+				// or overflow in total
+				if (i != 1 && (values[i] < 0 || (total += values[i]) < 0)) {
+					throw new IOException("Malformed sketch");
+				}
+			}
+			if (length > 1) {
+				values[1] = (values[1] >>> 1) ^ -(values[1] & 1);
+			}
+			sketch = MetricSketch.valueOf(values);
+		}
+		int tags = readLength();
+		tagMap = new HashMap<>();
+		for (int i = 0; i < tags; i ++) {
+			String key = readString();
+			tagMap.put(key, readString());
+		}
+		return true;
+	}
+
+	public String getName() {
+		return name;
+	}
+
+	public int getTime() {
+		return time;
+	}
+
+	public long getCount() {
+		return count;
+	}
+
+	public double getSum() {
+		return sum;
+	}
+
+	public double getMax() {
+		return max;
+	}
+
+	public double getMin() {
+		return min;
+	}
+
+	public double getSqr() {
+		return sqr;
+	}
+
+	public MetricSketch getSketch() {
+		return sketch;
+	}
+
+	public Map<String, String> getTagMap() {
+		return tagMap;
+	}
+}
\ No newline at end of file
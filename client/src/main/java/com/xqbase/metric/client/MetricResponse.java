@@ -0,0 +1,148 @@
+package com.xqbase.metric.client;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.Writer;
+import java.nio.CharBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+
+import javax.servlet.ServletOutputStream;
+import javax.servlet.WriteListener;
+import javax.servlet.http.HttpServletResponse;
+import javax.servlet.http.HttpServletResponseWrapper;
+
+// Counts the size and the time of the first byte of an async response,
+// written by one thread at a time but maybe not the same one
+class MetricResponse extends HttpServletResponseWrapper {
+	private volatile long size = 0;
+	// "System.nanoTime()" of the first write or flush, 0 if not written yet
+	private volatile long firstByte = 0;
+	private ServletOutputStream out = null;
+	private PrintWriter writer = null;
+
+	MetricResponse(HttpServletResponse response) {
+		super(response);
+	}
+
+	long getSize() {
+		return size;
+	}
+
+	long getFirstByte() {
+		return firstByte;
+	}
+
+	void written(int len) {
+		if (firstByte == 0) {
+			firstByte = System.nanoTime();
+		}
+		size += len;
+	}
+
+	@Override
+	public ServletOutputStream getOutputStream() throws IOException {
+		if (out == null) {
+			final ServletOutputStream out_ = super.getOutputStream();
+			out = new ServletOutputStream() {
+				@Override
+				public void write(int b) throws IOException {
+					out_.write(b);
+					written(1);
+				}
+
+				@Override
+				public void write(byte[] b, int off, int len) throws IOException {
+					out_.write(b, off, len);
+					written(len);
+				}
+
+				@Override
+				public void flush() throws IOException {
+					out_.flush();
+				}
+
+				@Override
+				public void close() throws IOException {
+					out_.close();
+				}
+
+				@Override
+				public boolean isReady() {
+					return out_.isReady();
+				}
+
+				@Override
+				public void setWriteListener(WriteListener listener) {
+					out_.setWriteListener(listener);
+				}
+			};
+		}
+		return out;
+	}
+
+	// Bytes of characters encoded in "charset", which is null for single-byte charsets
+	private static int encoded(Charset charset, CharSequence s, int off, int len) {
+		if (charset == null) {
+			return len;
+		}
+		if (charset != StandardCharsets.UTF_8) {
+			return charset.encode(CharBuffer.wrap(s, off, off + len)).remaining();
+		}
+		int n = 0;
+		for (int i = off; i < off + len; i ++) {
+			char c = s.charAt(i);
+			// 4 bytes of a surrogate pair, 2 for each half
+			n += c < 0x80 ? 1 : c < 0x800 || Character.isSurrogate(c) ? 2 : 3;
+		}
+		return n;
+	}
+
+	// Counted as encoded by the container, rather than in characters
+	@Override
+	public PrintWriter getWriter() throws IOException {
+		if (writer == null) {
+			final PrintWriter writer_ = super.getWriter();
+			Charset charset_;
+			try {
+				charset_ = Charset.forName(getCharacterEncoding());
+			} catch (IllegalArgumentException e) {
+				charset_ = StandardCharsets.ISO_8859_1;
+			}
+			final Charset charset = charset_.equals(StandardCharsets.UTF_8) ?
+					StandardCharsets.UTF_8 : charset_.newEncoder().
+					maxBytesPerChar() == 1 ? null : charset_;
+			writer = new PrintWriter(new Writer() {
+				@Override
+				public void write(char[] cbuf, int off, int len) {
+					writer_.write(cbuf, off, len);
+					written(charset == null ? len :
+							encoded(charset, CharBuffer.wrap(cbuf, off, len), 0, len));
+				}
+
+				@Override
+				public void write(String s, int off, int len) {
+					writer_.write(s, off, len);
+					written(encoded(charset, s, off, len));
+				}
+
+				@Override
+				public void flush() {
+					writer_.flush();
+				}
+
+				@Override
+				public void close() {
+					writer_.close();
+				}
+			});
+		}
+		return writer;
+	}
+
+	@Override
+	public void flushBuffer() throws IOException {
+		written(0);
+		super.flushBuffer();
+	}
+}
\ No newline at end of file
@@ -1,18 +1,25 @@
 package com.xqbase.metric;
 
-import java.io.ByteArrayInputStream;
 import java.io.IOException;
 import java.net.DatagramPacket;
 import java.net.DatagramSocket;
 import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Comparator;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.ScheduledThreadPoolExecutor;
@@ -20,7 +27,8 @@ import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.function.BiConsumer;
 import java.util.logging.Logger;
-import java.util.zip.InflaterInputStream;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
 
 import org.bson.Document;
 
@@ -30,11 +38,16 @@ import com.mongodb.client.MongoCollection;
 import com.mongodb.client.MongoDatabase;
 import com.mongodb.client.model.UpdateOptions;
 import com.xqbase.metric.client.ManagementMonitor;
+import com.xqbase.metric.client.MetricClient;
+import com.xqbase.metric.client.MetricDecoder;
+import com.xqbase.metric.client.MetricDictionary;
 import com.xqbase.metric.common.Metric;
-import com.xqbase.metric.common.MetricEntry;
+import com.xqbase.metric.common.MetricBatch;
+import com.xqbase.metric.common.MetricKey;
+import com.xqbase.metric.common.MetricParser;
+import com.xqbase.metric.common.MetricSketch;
 import com.xqbase.metric.common.MetricValue;
 import com.xqbase.metric.util.CollectionsEx;
-import com.xqbase.util.ByteArrayQueue;
 import com.xqbase.util.Conf;
 import com.xqbase.util.Log;
 import com.xqbase.util.Numbers;
@@ -43,12 +56,37 @@ import com.xqbase.util.Service;
 import com.xqbase.util.Strings;
 import com.xqbase.util.Time;
 
+class UdpPacket {
+	byte[] buf;
+	int len;
+	String remoteAddr;
+
+	UdpPacket(int size) {
+		buf = new byte[size];
+	}
+}
+
+// Inflater, output buffer and text parser reused by one thread
+class PacketInflater {
+	Inflater inflater = new Inflater();
+	byte[] buf = new byte[65536];
+	MetricParser parser = new MetricParser();
+}
+
+class TcpConnection {
+	String remoteAddr;
+	ByteBuffer header = ByteBuffer.allocate(4);
+	// Wraps "buf" while a frame is being read, otherwise null
+	ByteBuffer frame = null;
+	byte[] buf = new byte[MetricClient.MAX_FRAME_SIZE];
+	ByteBuffer ack = ByteBuffer.allocate(1);
+}
+
 public class Collector {
 	private static final int MAX_BUFFER_SIZE = 1048576;
 	private static final int MAX_METRIC_LEN = 64;
 
-	private static double __(String s) {
-		double d = Numbers.parseDouble(s);
+	private static double __(double d) {
 		return Double.isNaN(d) ? 0 : d;
 	}
 
@@ -60,9 +98,8 @@ public class Collector {
 		return s.replace("\\-", "\\").replace("\\_", ".");
 	}
 
-	private static String decode(String s, int limit) {
-		String result = Strings.decodeUrl(s);
-		return limit > 0 ? Strings.truncate(result, limit) : result;
+	private static String truncate(String s, int limit) {
+		return limit > 0 ? Strings.truncate(s, limit) : s;
 	}
 
 	private static void put(Map<String, List<Document>> rowsMap,
@@ -95,6 +132,11 @@ public class Collector {
 		return value instanceof Number ? ((Number) value).doubleValue() : 0;
 	}
 
+	private static MetricSketch getSketch(Document row) {
+		Object value = row.get("sketch");
+		return value instanceof String ? MetricSketch.parse((String) value) : null;
+	}
+
 	private static Document getDocument(Document row, String key) {
 		Object value = row.get(key);
 		return value instanceof Document ? (Document) value : new Document();
@@ -116,12 +158,19 @@ public class Collector {
 	private static final UpdateOptions UPSERT = new UpdateOptions().upsert(true);
 
 	private static Service service = new Service();
+	private static MetricBatch metrics = new MetricBatch();
 	private static int serverId, expire, tagsExpire, maxTags, maxTagValues,
 			maxTagCombinations, maxTagNameLen, maxTagValueLen;
-	private static boolean verbose;
+	private static boolean verbose, enableRemoteAddr;
+	private static Set<String> allowedRemotes;
+	private static AtomicInteger currentMinute;
+	private static ExecutorService executor;
+	private static ArrayBlockingQueue<UdpPacket> udpQueue, udpPool, udpLargePool;
+	private static volatile boolean udpStopped = false;
 
 	private static Document row(Map<String, String> tagMap, int now,
-			long count, double sum, double max, double min, double sqr) {
+			long count, double sum, double max, double min, double sqr,
+			MetricSketch sketch) {
 		Document row = new Document();
 		if (tagMap != null) {
 			Document tags = new Document();
@@ -142,16 +191,21 @@ public class Collector {
 		put(row, "max", max);
 		put(row, "min", min);
 		put(row, "sqr", sqr);
+		if (sketch != null) {
+			row.put("sketch", sketch.toString());
+		}
 		return row;
 	}
 
 	private static void minutely(MongoDatabase db, int minute) {
 		// Insert aggregation-during-collection metrics
 		Map<String, List<Document>> rowsMap = new HashMap<>();
-		for (MetricEntry entry : Metric.removeAll()) {
-			Document row = row(entry.getTagMap(), minute, entry.getCount(),
-					entry.getSum(), entry.getMax(), entry.getMin(), entry.getSqr());
-			put(rowsMap, entry.getName(), row);
+		Metric.removeAll(metrics);
+		for (int i = 0; i < metrics.size(); i ++) {
+			Document row = row(metrics.getTagMap(i), minute,
+					metrics.getCount(i), metrics.getSum(i), metrics.getMax(i),
+					metrics.getMin(i), metrics.getSqr(i), metrics.getSketch(i));
+			put(rowsMap, metrics.getName(i), row);
 		}
 		if (!rowsMap.isEmpty()) {
 			insert(db, rowsMap);
@@ -213,7 +267,8 @@ public class Collector {
 			Document tagValues = new Document();
 			BiConsumer<String, MetricValue> action = (tagValue, value) -> {
 				tagValues.put(escape(tagValue), row(null, 0, value.getCount(),
-						value.getSum(), value.getMax(), value.getMin(), value.getSqr()));
+						value.getSum(), value.getMax(), value.getMin(), value.getSqr(),
+						null));
 			};
 			if (maxTagValues > 0 && valueMap.size() > maxTagValues) {
 				CollectionsEx.forEach(CollectionsEx.max(valueMap.entrySet(),
@@ -273,7 +328,7 @@ public class Collector {
 					getInt(aggregatedRow, "time");
 			for (int i = start + 1; i <= quarter; i ++) {
 				List<Document> rows = new ArrayList<>();
-				Map<Map<String, String>, MetricValue> result = new HashMap<>();
+				Map<MetricKey, MetricValue> result = new HashMap<>();
 				Document range = __("$gte", Integer.valueOf(i * 15 - 14));
 				range.put("$lte", Integer.valueOf(i * 15));
 				for (Document row : collection.find(__("time", range)).batchSize(1024)) {
@@ -283,10 +338,11 @@ public class Collector {
 					// Aggregate to "_quarter.*"
 					MetricValue newValue = new MetricValue(getLong(row, "count"),
 							getDouble(row, "sum"), getDouble(row, "max"),
-							getDouble(row, "min"), getDouble(row, "sqr"));
-					MetricValue value = result.get(tags);
+							getDouble(row, "min"), getDouble(row, "sqr"), getSketch(row));
+					MetricKey key = new MetricKey(name, tags);
+					MetricValue value = result.get(key);
 					if (value == null) {
-						result.put(tags, newValue);
+						result.put(key, newValue);
 					} else {
 						value.add(newValue);
 					}
@@ -298,10 +354,11 @@ public class Collector {
 				Metric.put("metric.tags.combinations", combinations, "name", name);
 				Map<String, Map<String, MetricValue>> tagMap = new HashMap<>();
 				int i_ = i;
-				BiConsumer<Map<String, String>, MetricValue> action = (tags, value) -> {
+				BiConsumer<MetricKey, MetricValue> action = (key, value) -> {
+					Map<String, String> tags = key.getTagMap();
 					// {"time": i}, but not {"time": quarter} !
 					rows.add(row(tags, i_, value.getCount(), value.getSum(),
-							value.getMax(), value.getMin(), value.getSqr()));
+							value.getMax(), value.getMin(), value.getSqr(), value.sketch()));
 					// Aggregate to "_meta.tags_quarter"
 					tags.forEach((tagKey, tagValue) ->
 							putTagValue(tagMap, tagKey, tagValue, value));
@@ -368,7 +425,267 @@ public class Collector {
 		}
 	}
 
+	// Binary rows from "MetricClient"
+	private static void receive(MetricDecoder decoder, String remoteAddr,
+			Map<String, List<Document>> rowsMap,
+			Map<String, Integer> countMap) throws IOException {
+		while (decoder.next()) {
+			String name = truncate(decoder.getName(), MAX_METRIC_LEN);
+			if (name.isEmpty()) {
+				Log.w("Incorrect format: empty name");
+				continue;
+			}
+			Map<String, String> tagMap = new HashMap<>();
+			decoder.getTagMap().forEach((k, v) -> tagMap.put(truncate(k, maxTagNameLen),
+					truncate(v, maxTagValueLen)));
+			if (remoteAddr != null) {
+				tagMap.put("remote_addr", remoteAddr);
+			}
+			put(rowsMap, name, row(tagMap, decoder.getTime(), decoder.getCount(),
+					decoder.getSum(), decoder.getMax(), decoder.getMin(),
+					decoder.getSqr(), decoder.getSketch()));
+			Integer count = countMap.get(name);
+			countMap.put(name, Integer.valueOf(count == null ?
+					1 : count.intValue() + 1));
+		}
+	}
+
 	@SuppressWarnings("resource")
+	// Inflates and parses one packet, from UDP or a TCP frame
+	private static void receive(MongoDatabase db, byte[] buf, int len,
+			String remoteAddr, PacketInflater inflater) {
+		// Inflate into the buffer of this thread
+		Inflater inflater_ = inflater.inflater;
+		byte[] out = inflater.buf;
+		int outLen = 0;
+		inflater_.reset();
+		inflater_.setInput(buf, 0, len);
+		try {
+			while (!inflater_.finished()) {
+				if (outLen == out.length) {
+					// Prevent attack
+					if (out.length >= MAX_BUFFER_SIZE) {
+						break;
+					}
+					out = Arrays.copyOf(out, Math.min(out.length * 2, MAX_BUFFER_SIZE));
+					inflater.buf = out;
+				}
+				int bytesRead = inflater_.inflate(out, outLen, out.length - outLen);
+				if (bytesRead > 0) {
+					outLen += bytesRead;
+				} else if (inflater_.needsDictionary()) {
+					byte[] dictionary = MetricDictionary.get(inflater_.getAdler());
+					if (dictionary == null) {
+						Log.w("Unknown dictionary from " + remoteAddr);
+						break;
+					}
+					inflater_.setDictionary(dictionary);
+				} else {
+					// Truncated
+					break;
+				}
+			}
+		} catch (DataFormatException e) {
+			Log.w("Unable to inflate packet from " + remoteAddr);
+			// Continue to parse rows
+		}
+
+		Map<String, List<Document>> rowsMap = new HashMap<>();
+		Map<String, Integer> countMap = new HashMap<>();
+		if (MetricDecoder.isBinary(out, 0, outLen)) {
+			try {
+				receive(new MetricDecoder(out, 0, outLen),
+						enableRemoteAddr ? remoteAddr : null, rowsMap, countMap);
+			} catch (IOException e) {
+				Log.w("Incorrect format from " + remoteAddr + ": " + e.getMessage());
+			}
+		} else {
+			MetricParser parser = inflater.parser;
+			parser.reset(out, 0, outLen);
+			while (parser.next()) {
+				// Parse name, aggregation, value and tags
+				// <name>/<aggregation>/<value>[?<tag>=<value>[&...]]
+				int fields = parser.getFieldCount();
+				String name = fields < 2 ? "" :
+						truncate(parser.getString(0), MAX_METRIC_LEN);
+				if (name.isEmpty()) {
+					Log.w("Incorrect format: [" + parser.getLine() + "]");
+					continue;
+				}
+				Map<String, String> tagMap = new HashMap<>();
+				for (int i = 0; i < parser.getTagCount(); i ++) {
+					tagMap.put(truncate(parser.getTagKey(i), maxTagNameLen),
+							truncate(parser.getTagValue(i), maxTagValueLen));
+				}
+				if (enableRemoteAddr) {
+					tagMap.put("remote_addr", remoteAddr);
+				}
+				if (fields > 6) {
+					// For aggregation-before-collection metric, insert immediately
+					put(rowsMap, name, row(tagMap,
+							(int) parser.getLong(1, currentMinute.get()),
+							parser.getLong(2, 0), __(parser.getDouble(3)),
+							__(parser.getDouble(4)), __(parser.getDouble(5)),
+							__(parser.getDouble(6)), parser.getSketch(7)));
+				} else {
+					// For aggregation-during-collection metric, aggregate first
+					Metric.put(name, __(parser.getDouble(1)), tagMap);
+				}
+				Integer count = countMap.get(name);
+				countMap.put(name, Integer.valueOf(count == null ?
+						1 : count.intValue() + 1));
+			}
+		}
+		if (verbose) {
+			Log.d("Metrics received from " + remoteAddr + ": " + countMap);
+		}
+		if (enableRemoteAddr) {
+			Metric.put("metric.throughput", len,
+					"remote_addr", remoteAddr, "server_id", "" + serverId);
+			countMap.forEach((name, value) -> {
+				Metric.put("metric.rows", value.intValue(), "name", name,
+						"remote_addr", remoteAddr, "server_id", "" + serverId);
+			});
+		} else {
+			Metric.put("metric.throughput", len, "server_id", "" + serverId);
+			countMap.forEach((name, value) -> {
+				Metric.put("metric.rows", value.intValue(), "name", name,
+						"server_id", "" + serverId);
+			});
+		}
+		// Insert aggregation-before-collection metrics
+		if (!rowsMap.isEmpty()) {
+			executor.execute(Runnables.wrap(() -> insert(db, rowsMap)));
+		}
+	}
+
+	private static void accept(Selector selector,
+			ServerSocketChannel server) throws IOException {
+		SocketChannel channel = server.accept();
+		if (channel == null) {
+			return;
+		}
+		String remoteAddr = ((InetSocketAddress) channel.getRemoteAddress()).
+				getAddress().getHostAddress();
+		if (allowedRemotes != null && !allowedRemotes.contains(remoteAddr)) {
+			Log.w(remoteAddr + " not allowed");
+			channel.close();
+			return;
+		}
+		TcpConnection conn = new TcpConnection();
+		conn.remoteAddr = remoteAddr;
+		channel.configureBlocking(false);
+		channel.register(selector, SelectionKey.OP_READ, conn);
+	}
+
+	// Returns false if the connection should be closed
+	private static boolean read(MongoDatabase db, SocketChannel channel,
+			TcpConnection conn, PacketInflater inflater) throws IOException {
+		while (true) {
+			ByteBuffer bb = conn.frame == null ? conn.header : conn.frame;
+			if (channel.read(bb) < 0) {
+				return false;
+			}
+			if (bb.hasRemaining()) {
+				return true;
+			}
+			if (conn.frame == null) {
+				int len = conn.header.getInt(0);
+				if (len <= 0 || len > MetricClient.MAX_FRAME_SIZE) {
+					Log.w("Incorrect frame length " + len + " from " + conn.remoteAddr);
+					return false;
+				}
+				conn.frame = ByteBuffer.wrap(conn.buf, 0, len);
+				continue;
+			}
+			receive(db, conn.buf, conn.frame.limit(), conn.remoteAddr, inflater);
+			conn.header.clear();
+			conn.frame = null;
+			conn.ack.clear();
+			if (channel.write(conn.ack) == 0) {
+				// Acknowledgements are not being read
+				return false;
+			}
+		}
+	}
+
+	// <length> <deflated packet> from "MetricClient", one byte is sent back
+	// after the frame is parsed, so the client knows what to resend
+	private static void acceptTcp(MongoDatabase db, ServerSocketChannel server) {
+		PacketInflater inflater = new PacketInflater();
+		try (Selector selector = Selector.open()) {
+			server.configureBlocking(false);
+			server.register(selector, SelectionKey.OP_ACCEPT);
+			// Closed by main thread
+			while (server.isOpen()) {
+				selector.select(1000);
+				Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+				while (it.hasNext()) {
+					SelectionKey key = it.next();
+					it.remove();
+					if (!key.isValid()) {
+						continue;
+					}
+					if (key.isAcceptable()) {
+						try {
+							accept(selector, server);
+						} catch (IOException e) {
+							Log.w(e.getMessage());
+						}
+						continue;
+					}
+					SocketChannel channel = (SocketChannel) key.channel();
+					boolean open;
+					try {
+						open = key.isReadable() && read(db, channel,
+								(TcpConnection) key.attachment(), inflater);
+					} catch (IOException e) {
+						open = false;
+					} catch (RuntimeException e) {
+						// Only this connection is dropped, not the listener
+						Log.e(e);
+						open = false;
+					}
+					if (!open) {
+						channel.close();
+					}
+				}
+			}
+			for (SelectionKey key : selector.keys()) {
+				key.channel().close();
+			}
+		} catch (IOException e) {
+			Log.w(e.getMessage());
+		} finally {
+			inflater.inflater.end();
+		}
+	}
+
+	// Parses packets queued by the receiving thread, each worker has its own Inflater,
+	// and drains the queue after the socket is closed
+	private static void parseUdp(MongoDatabase db) {
+		PacketInflater inflater = new PacketInflater();
+		try {
+			UdpPacket packet;
+			while ((packet = udpQueue.poll(1, TimeUnit.SECONDS)) != null || !udpStopped) {
+				if (packet == null) {
+					continue;
+				}
+				try {
+					receive(db, packet.buf, packet.len, packet.remoteAddr, inflater);
+				} catch (RuntimeException e) {
+					Log.e(e);
+				}
+				(packet.buf.length > MetricClient.MAX_PACKET_SIZE ?
+						udpLargePool : udpPool).offer(packet);
+			}
+		} catch (InterruptedException e) {
+			// Interrupted by shutdown
+		} finally {
+			inflater.inflater.end();
+		}
+	}
+
 	public static void main(String[] args) {
 		if (!service.startup(args)) {
 			return;
@@ -376,7 +693,7 @@ public class Collector {
 		System.setProperty("java.util.logging.SimpleFormatter.format",
 				"%1$tY-%1$tm-%1$td %1$tk:%1$tM:%1$tS.%1$tL %2$s%n%4$s: %5$s%6$s%n");
 		Logger logger = Log.getAndSet(Conf.openLogger("Collector.", 16777216, 10));
-		ExecutorService executor = Executors.newCachedThreadPool();
+		executor = Executors.newCachedThreadPool();
 		ScheduledThreadPoolExecutor timer = new ScheduledThreadPoolExecutor(2);
 
 		Properties p = Conf.load("Collector");
@@ -392,20 +709,34 @@ public class Collector {
 		maxTagNameLen = Numbers.parseInt(p.getProperty("max_tag_name_len"));
 		maxTagValueLen = Numbers.parseInt(p.getProperty("max_tag_value_len"));
 		int quarterDelay = Numbers.parseInt(p.getProperty("quarter_delay"), 2);
-		boolean enableRemoteAddr = Conf.getBoolean(p.getProperty("remote_addr"), true);
+		enableRemoteAddr = Conf.getBoolean(p.getProperty("remote_addr"), true);
 		String allowedRemote = p.getProperty("allowed_remote");
-		HashSet<String> allowedRemotes = null;
+		allowedRemotes = null;
 		if (allowedRemote != null) {
 			allowedRemotes = new HashSet<>(Arrays.asList(allowedRemote.split("[,;]")));
 		}
 		verbose = Conf.getBoolean(p.getProperty("verbose"), false);
+		boolean tcp = Conf.getBoolean(p.getProperty("tcp"), false);
+		int udpWorkers = Math.max(Numbers.parseInt(p.getProperty("udp_workers"),
+				Runtime.getRuntime().availableProcessors()), 1);
+		int udpQueueSize = Math.max(Numbers.parseInt(p.getProperty("udp_queue"), 4096), 16);
+		udpQueue = new ArrayBlockingQueue<>(udpQueueSize);
+		// Enough for a full queue and the packets being parsed,
+		// so no buffer is allocated once the pool is filled
+		udpPool = new ArrayBlockingQueue<>(udpQueueSize + udpWorkers);
+		// Large buffers are 64 KB each, so fewer of them are kept, 16 MB by default
+		udpLargePool = new ArrayBlockingQueue<>(Math.max(Numbers.
+				parseInt(p.getProperty("udp_large_pool"), 256), 1));
+		int udpRcvbuf = Numbers.parseInt(p.getProperty("udp_rcvbuf"));
+		ExecutorService workers = Executors.newFixedThreadPool(udpWorkers);
 		long start = System.currentTimeMillis();
-		AtomicInteger currentMinute = new AtomicInteger((int) (start / Time.MINUTE));
+		currentMinute = new AtomicInteger((int) (start / Time.MINUTE));
 		MongoClient mongo = null;
 		Runnable minutely = null;
 		try (
 			DatagramSocket socket = new DatagramSocket(new
 					InetSocketAddress(host, port));
+			ServerSocketChannel server = tcp ? ServerSocketChannel.open() : null;
 			ManagementMonitor monitor = new ManagementMonitor("metric.server");
 		) {
 			p = Conf.load("Mongo");
@@ -423,14 +754,33 @@ public class Collector {
 			});
 			timer.scheduleAtFixedRate(minutely, Time.MINUTE - start % Time.MINUTE,
 					Time.MINUTE, TimeUnit.MILLISECONDS);
-			timer.scheduleAtFixedRate(monitor, 5, 5, TimeUnit.SECONDS);
+			Metric.registerSampler(monitor);
+			Metric.registerGauge("metric.queue.depth", udpQueue::size, "stage", "udp");
+			timer.scheduleAtFixedRate(Runnables.wrap(Metric::sample), 5, 5, TimeUnit.SECONDS);
+			if (udpRcvbuf > 0) {
+				socket.setReceiveBufferSize(udpRcvbuf);
+				// Limited by "net.core.rmem_max" on Linux
+				if (socket.getReceiveBufferSize() < udpRcvbuf) {
+					Log.w("UDP receive buffer limited to " +
+							socket.getReceiveBufferSize() + " bytes");
+				}
+			}
 			service.register(socket);
+			if (server != null) {
+				server.bind(new InetSocketAddress(host, port));
+				executor.execute(Runnables.wrap(() -> acceptTcp(db, server)));
+			}
 
-			Log.i("Metric Collector Started on UDP " + host + ":" + port);
+			Log.i("Metric Collector Started on " +
+					(server == null ? "UDP " : "UDP and TCP ") + host + ":" + port);
+			for (int i = 0; i < udpWorkers; i ++) {
+				workers.execute(Runnables.wrap(() -> parseUdp(db)));
+			}
+			byte[] buf = new byte[65536];
+			DatagramPacket packet = new DatagramPacket(buf, buf.length);
 			while (!Thread.interrupted()) {
 				// Receive
-				byte[] buf = new byte[65536];
-				DatagramPacket packet = new DatagramPacket(buf, buf.length);
+				packet.setLength(buf.length);
 				// Blocked, or closed by shutdown handler
 				socket.receive(packet);
 				int len = packet.getLength();
@@ -439,96 +789,21 @@ public class Collector {
 					Log.w(remoteAddr + " not allowed");
 					continue;
 				}
-				// Inflate
-				ByteArrayQueue baq = new ByteArrayQueue();
-				byte[] buf_ = new byte[2048];
-				try (InflaterInputStream inflater = new InflaterInputStream(new
-						ByteArrayInputStream(buf, 0, len))) {
-					int bytesRead;
-					while ((bytesRead = inflater.read(buf_)) > 0) {
-						baq.add(buf_, 0, bytesRead);
-						// Prevent attack
-						if (baq.length() > MAX_BUFFER_SIZE) {
-							break;
-						}
-					}
-				} catch (IOException e) {
-					Log.w("Unable to inflate packet from " + remoteAddr);
-					// Continue to parse rows
-				}
-
-				Map<String, List<Document>> rowsMap = new HashMap<>();
-				Map<String, Integer> countMap = new HashMap<>();
-				for (String line : baq.toString().split("\n")) {
-					// Truncate tailing '\r'
-					int length = line.length();
-					if (length > 0 && line.charAt(length - 1) == '\r') {
-						line = line.substring(0, length - 1);
-					}
-					// Parse name, aggregation, value and tags
-					// <name>/<aggregation>/<value>[?<tag>=<value>[&...]]
-					String[] paths;
-					Map<String, String> tagMap = new HashMap<>();
-					int index = line.indexOf('?');
-					if (index < 0) {
-						paths = line.split("/");
-					} else {
-						paths = line.substring(0, index).split("/");
-						String query = line.substring(index + 1);
-						for (String tag : query.split("&")) {
-							index = tag.indexOf('=');
-							if (index > 0) {
-								tagMap.put(decode(tag.substring(0, index), maxTagNameLen),
-										decode(tag.substring(index + 1), maxTagValueLen));
-							}
-						}
-					}
-					if (paths.length < 2) {
-						Log.w("Incorrect format: [" + line + "]");
-						continue;
-					}
-					String name = decode(paths[0], MAX_METRIC_LEN);
-					if (name.isEmpty()) {
-						Log.w("Incorrect format: [" + line + "]");
-						continue;
-					}
-					if (enableRemoteAddr) {
-						tagMap.put("remote_addr", remoteAddr);
-					}
-					if (paths.length > 6) {
-						// For aggregation-before-collection metric, insert immediately
-						put(rowsMap, name, row(tagMap,
-								Numbers.parseInt(paths[1], currentMinute.get()),
-								Numbers.parseLong(paths[2]), __(paths[3]),
-								__(paths[4]), __(paths[5]), __(paths[6])));
-					} else {
-						// For aggregation-during-collection metric, aggregate first
-						Metric.put(name, __(paths[1]), tagMap);
-					}
-					Integer count = countMap.get(name);
-					countMap.put(name, Integer.valueOf(count == null ?
-							1 : count.intValue() + 1));
-				}
-				if (verbose) {
-					Log.d("Metrics received from " + remoteAddr + ": " + countMap);
-				}
-				if (enableRemoteAddr) {
-					Metric.put("metric.throughput", len,
-							"remote_addr", remoteAddr, "server_id", "" + serverId);
-					countMap.forEach((name, value) -> {
-						Metric.put("metric.rows", value.intValue(), "name", name,
-								"remote_addr", remoteAddr, "server_id", "" + serverId);
-					});
-				} else {
-					Metric.put("metric.throughput", len, "server_id", "" + serverId);
-					countMap.forEach((name, value) -> {
-						Metric.put("metric.rows", value.intValue(), "name", name,
-								"server_id", "" + serverId);
-					});
+				// Parsed by workers, so a burst is buffered here rather than in the kernel
+				// Packets above "MAX_PACKET_SIZE" are sent by "MetricClient" with
+				// fragmentation on, and get buffers as large as "buf" from their own pool
+				boolean large = len > MetricClient.MAX_PACKET_SIZE;
+				ArrayBlockingQueue<UdpPacket> pool = large ? udpLargePool : udpPool;
+				UdpPacket udp = pool.poll();
+				if (udp == null) {
+					udp = new UdpPacket(large ? buf.length : MetricClient.MAX_PACKET_SIZE);
 				}
-				// Insert aggregation-before-collection metrics
-				if (!rowsMap.isEmpty()) {
-					executor.execute(Runnables.wrap(() -> insert(db, rowsMap)));
+				System.arraycopy(buf, 0, udp.buf, 0, len);
+				udp.len = len;
+				udp.remoteAddr = remoteAddr;
+				if (!udpQueue.offer(udp)) {
+					Metric.put("metric.queue.dropped", 1, "stage", "udp");
+					pool.offer(udp);
 				}
 			}
 		} catch (IOException e) {
@@ -536,6 +811,8 @@ public class Collector {
 		} catch (Error | RuntimeException e) {
 			Log.e(e);
 		}
+		udpStopped = true;
+		Runnables.shutdown(workers);
 		Runnables.shutdown(timer);
 		Dashboard.shutdown();
 		// Do not do Mongo operations in main thread (may be interrupted)
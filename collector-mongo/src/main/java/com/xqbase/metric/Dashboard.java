@@ -15,13 +15,14 @@ import java.util.Date;
 import java.util.HashMap;
 import java.util.Locale;
 import java.util.Map;
+import java.util.Objects;
 import java.util.Properties;
 import java.util.Set;
 import java.util.TimeZone;
 import java.util.TreeSet;
 import java.util.function.Function;
 import java.util.function.ToDoubleFunction;
-import java.util.stream.DoubleStream;
+import java.util.stream.Stream;
 import java.util.zip.GZIPOutputStream;
 
 import org.bson.Document;
@@ -32,6 +33,7 @@ import com.mongodb.client.MongoDatabase;
 import com.sun.net.httpserver.Headers;
 import com.sun.net.httpserver.HttpExchange;
 import com.sun.net.httpserver.HttpServer;
+import com.xqbase.metric.common.MetricSketch;
 import com.xqbase.metric.common.MetricValue;
 import com.xqbase.metric.util.CollectionsEx;
 import com.xqbase.util.ByteArrayQueue;
@@ -116,6 +118,9 @@ public class Dashboard {
 		methodMap.put("min", MetricValue::getMin);
 		methodMap.put("avg", MetricValue::getAvg);
 		methodMap.put("std", MetricValue::getStd);
+		methodMap.put("p50", value -> value.getQuantile(0.5));
+		methodMap.put("p90", value -> value.getQuantile(0.9));
+		methodMap.put("p99", value -> value.getQuantile(0.99));
 		methodMap.put("names", NAMES_METHOD);
 		methodMap.put("tags", TAGS_METHOD);
 	}
@@ -148,6 +153,11 @@ public class Dashboard {
 		return value instanceof String ? (String) value : "_";
 	}
 
+	private static MetricSketch getSketch(Document row) {
+		Object value = row.get("sketch");
+		return value instanceof String ? MetricSketch.parse((String) value) : null;
+	}
+
 	private static Document getDocument(Document row, String key) {
 		Object value = row.get(key);
 		return value instanceof Document ? (Document) value : new Document();
@@ -396,7 +406,8 @@ public class Dashboard {
 				GroupKey key = new GroupKey(groupBy.apply(row), index);
 				MetricValue newValue = new MetricValue(getLong(row, "count"),
 						getDouble(row, "sum"), getDouble(row, "max"),
-						getDouble(row, "min"), getDouble(row, "sqr"));
+						getDouble(row, "min"), getDouble(row, "sqr"),
+						getSketch(row));
 				MetricValue value = result.get(key);
 				if (value == null) {
 					result.put(key, newValue);
@@ -410,25 +421,27 @@ public class Dashboard {
 			return;
 		}
 		// Generate Data
-		Map<String, double[]> data = new HashMap<>();
+		Map<String, Double[]> data = new HashMap<>();
 		result.forEach((key, value) -> {
 			/* Already Filtered during Grouping
 			if (key.index < 0 || key.index >= length) {
 				continue;
 			} */
-			double[] values = data.get(key.tag);
+			Double[] values = data.get(key.tag);
 			if (values == null) {
-				values = new double[length];
-				Arrays.fill(values, 0);
+				values = new Double[length];
+				Arrays.fill(values, Double.valueOf(0));
 				data.put(key.tag, values);
 			}
 			double d = method.applyAsDouble(value);
-			values[key.index] = Double.isFinite(d) ? d : 0;
+			// Quantiles without a sketch are null, which is a gap in the chart rather than 0
+			values[key.index] = Double.isNaN(d) ? null : Double.valueOf(Double.isFinite(d) ? d : 0);
 		});
 		if (maxTagValues > 0 && data.size() > maxTagValues) {
 			response(exchange, CollectionsEx.toMap(CollectionsEx.max(data.entrySet(),
 					Comparator.comparingDouble(entry ->
-					DoubleStream.of((double[]) entry.getValue()).sum()),
+					Stream.of((Double[]) entry.getValue()).filter(Objects::nonNull).
+					mapToDouble(Double::doubleValue).sum()),
 					maxTagValues)), acceptGzip);
 		} else {
 			response(exchange, data, acceptGzip);
@@ -1,11 +1,16 @@
 package com.xqbase.metric;
 
-import java.io.ByteArrayInputStream;
 import java.io.File;
 import java.io.IOException;
 import java.net.DatagramPacket;
 import java.net.DatagramSocket;
 import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Comparator;
@@ -16,6 +21,7 @@ import java.util.List;
 import java.util.Map;
 import java.util.Properties;
 import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.ScheduledThreadPoolExecutor;
@@ -23,18 +29,24 @@ import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.function.BiConsumer;
 import java.util.logging.Logger;
-import java.util.zip.InflaterInputStream;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
 
 import org.h2.mvstore.MVMap;
 import org.h2.mvstore.MVStore;
 import org.json.JSONObject;
 
 import com.xqbase.metric.client.ManagementMonitor;
+import com.xqbase.metric.client.MetricClient;
+import com.xqbase.metric.client.MetricDecoder;
+import com.xqbase.metric.client.MetricDictionary;
 import com.xqbase.metric.common.Metric;
-import com.xqbase.metric.common.MetricEntry;
+import com.xqbase.metric.common.MetricBatch;
+import com.xqbase.metric.common.MetricKey;
+import com.xqbase.metric.common.MetricParser;
+import com.xqbase.metric.common.MetricSketch;
 import com.xqbase.metric.common.MetricValue;
 import com.xqbase.metric.util.CollectionsEx;
-import com.xqbase.util.ByteArrayQueue;
 import com.xqbase.util.Conf;
 import com.xqbase.util.Log;
 import com.xqbase.util.Numbers;
@@ -59,18 +71,42 @@ class NameTime {
 	}
 }
 
+class UdpPacket {
+	byte[] buf;
+	int len;
+	String remoteAddr;
+
+	UdpPacket(int size) {
+		buf = new byte[size];
+	}
+}
+
+// Inflater, output buffer and text parser reused by one thread
+class PacketInflater {
+	Inflater inflater = new Inflater();
+	byte[] buf = new byte[65536];
+	MetricParser parser = new MetricParser();
+}
+
+class TcpConnection {
+	String remoteAddr;
+	ByteBuffer header = ByteBuffer.allocate(4);
+	// Wraps "buf" while a frame is being read, otherwise null
+	ByteBuffer frame = null;
+	byte[] buf = new byte[MetricClient.MAX_FRAME_SIZE];
+	ByteBuffer ack = ByteBuffer.allocate(1);
+}
+
 public class Collector {
 	private static final int MAX_BUFFER_SIZE = 1048576;
 	private static final int MAX_METRIC_LEN = 64;
 
-	private static double __(String s) {
-		double d = Numbers.parseDouble(s);
+	private static double __(double d) {
 		return Double.isNaN(d) ? 0 : d;
 	}
 
-	private static String decode(String s, int limit) {
-		String result = Strings.decodeUrl(s);
-		return limit > 0 ? Strings.truncate(result, limit) : result;
+	private static String truncate(String s, int limit) {
+		return limit > 0 ? Strings.truncate(s, limit) : s;
 	}
 
 	private static Long fromLong(int minute) {
@@ -82,6 +118,7 @@ public class Collector {
 	}
 
 	private static Service service = new Service();
+	private static MetricBatch metrics = new MetricBatch();
 	private static MVStore mv;
 	private static Map<String, Long> sizeTable;
 	private static Map<String, Integer> aggregatedTable;
@@ -89,7 +126,12 @@ public class Collector {
 	private static MVMap<Integer, Integer> sequenceTable;
 	private static int expire, tagsExpire, maxTags, maxTagValues,
 			maxTagCombinations, maxTagNameLen, maxTagValueLen;
-	private static boolean verbose;
+	private static boolean verbose, enableRemoteAddr;
+	private static Set<String> allowedRemotes;
+	private static AtomicInteger currentMinute;
+	private static ExecutorService executor;
+	private static ArrayBlockingQueue<UdpPacket> udpQueue, udpPool, udpLargePool;
+	private static volatile boolean udpStopped = false;
 
 	private static void putMetric(long elapsed,
 			int keycount, String command, String name) {
@@ -213,16 +255,21 @@ public class Collector {
 	private static void minutely(int minute) {
 		// Insert aggregation-during-collection metrics
 		Map<String, StringBuilder> metricMap = new HashMap<>();
-		for (MetricEntry entry : Metric.removeAll()) {
-			StringBuilder sb = metricMap.computeIfAbsent(entry.getName(),
+		Metric.removeAll(metrics);
+		for (int i = 0; i < metrics.size(); i ++) {
+			StringBuilder sb = metricMap.computeIfAbsent(metrics.getName(i),
 					k -> new StringBuilder());
-			sb.append(entry.getCount()).
-					append('/').append(entry.getSum()).
-					append('/').append(entry.getMax()).
-					append('/').append(entry.getMin()).
-					append('/').append(entry.getSqr());
+			sb.append(metrics.getCount(i)).
+					append('/').append(metrics.getSum(i)).
+					append('/').append(metrics.getMax(i)).
+					append('/').append(metrics.getMin(i)).
+					append('/').append(metrics.getSqr(i));
+			MetricSketch sketch = metrics.getSketch(i);
+			if (sketch != null) {
+				sb.append('/').append(sketch);
+			}
 			int question = sb.length();
-			Map<String, String> tags = entry.getTagMap();
+			Map<String, String> tags = metrics.getTagMap(i);
 			Map<String, String> limitedTags;
 			if (maxTags > 0 && tags.size() > maxTags) {
 				limitedTags = new HashMap<>();
@@ -298,8 +345,9 @@ public class Collector {
 			long t = System.currentTimeMillis();
 			int keycount = 0;
 			int start = aggregated == 0 ? quarter - expire : aggregated;
+			MetricParser parser = new MetricParser();
 			for (int i = start + 1; i <= quarter; i ++) {
-				Map<Map<String, String>, MetricValue> accMetricMap = new HashMap<>();
+				Map<MetricKey, MetricValue> accMetricMap = new HashMap<>();
 				Iterator<Long> it = minuteTable.keyIterator(fromLong(i * 15 - 14));
 				Long to = toLong(i * 15);
 				while (it.hasNext()) {
@@ -312,31 +360,25 @@ public class Collector {
 						Log.w("Unable to get key " + key + " from table " + name);
 						continue;
 					}
-					for (String line : s.split("\n")) {
-						String[] paths;
-						Map<String, String> tags = new HashMap<>();
-						int index = line.indexOf('?');
-						if (index < 0) {
-							paths = line.split("/");
-						} else {
-							paths = line.substring(0, index).split("/");
-							String query = line.substring(index + 1);
-							for (String tag : query.split("&")) {
-								index = tag.indexOf('=');
-								if (index > 0) {
-									tags.put(decode(tag.substring(0, index), maxTagNameLen),
-											decode(tag.substring(index + 1), maxTagValueLen));
-								}
-							}
-						}
-						if (paths.length <= 4) {
+					byte[] b = s.getBytes(StandardCharsets.UTF_8);
+					parser.reset(b, 0, b.length);
+					while (parser.next()) {
+						if (parser.getFieldCount() <= 4) {
 							continue;
 						}
-						MetricValue newValue = new MetricValue(Numbers.parseLong(paths[0]),
-								__(paths[1]), __(paths[2]), __(paths[3]), __(paths[4]));
-						MetricValue value = accMetricMap.get(tags);
+						Map<String, String> tags = new HashMap<>();
+						for (int k = 0; k < parser.getTagCount(); k ++) {
+							tags.put(truncate(parser.getTagKey(k), maxTagNameLen),
+									truncate(parser.getTagValue(k), maxTagValueLen));
+						}
+						MetricValue newValue = new MetricValue(parser.getLong(0, 0),
+								__(parser.getDouble(1)), __(parser.getDouble(2)),
+								__(parser.getDouble(3)), __(parser.getDouble(4)),
+								parser.getSketch(5));
+						MetricKey metricKey = new MetricKey(name, tags);
+						MetricValue value = accMetricMap.get(metricKey);
 						if (value == null) {
-							accMetricMap.put(tags, newValue);
+							accMetricMap.put(metricKey, newValue);
 						} else {
 							value.add(newValue);
 						}
@@ -352,12 +394,17 @@ public class Collector {
 				// 5. Aggregate to "_tags_quarter.*"
 				StringBuilder sb = new StringBuilder();
 				Map<String, Map<String, MetricValue>> tagMap = new HashMap<>();
-				BiConsumer<Map<String, String>, MetricValue> action = (tags, value) -> {
+				BiConsumer<MetricKey, MetricValue> action = (key, value) -> {
+					Map<String, String> tags = key.getTagMap();
 					sb.append(value.getCount()).append('/').
 							append(value.getSum()).append('/').
 							append(value.getMax()).append('/').
 							append(value.getMin()).append('/').
 							append(value.getSqr());
+					MetricSketch sketch = value.sketch();
+					if (sketch != null) {
+						sb.append('/').append(sketch);
+					}
 					if (tags.isEmpty()) {
 						return;
 					}
@@ -418,6 +465,286 @@ public class Collector {
 		});
 	}
 
+	// Binary rows from "MetricClient", converted to the stored format
+	private static void receive(MetricDecoder decoder, String remoteAddr,
+			Map<NameTime, StringBuilder> metricMap,
+			Map<String, Integer> countMap) throws IOException {
+		while (decoder.next()) {
+			String name = truncate(decoder.getName(), MAX_METRIC_LEN);
+			Integer count = countMap.get(name);
+			countMap.put(name, Integer.valueOf(count == null ?
+					1 : count.intValue() + 1));
+			NameTime key = new NameTime();
+			key.name = name;
+			key.time = decoder.getTime();
+			StringBuilder sb = metricMap.computeIfAbsent(key, k -> new StringBuilder());
+			sb.append(decoder.getCount()).
+					append('/').append(decoder.getSum()).
+					append('/').append(decoder.getMax()).
+					append('/').append(decoder.getMin()).
+					append('/').append(decoder.getSqr());
+			MetricSketch sketch = decoder.getSketch();
+			if (sketch != null) {
+				sb.append('/').append(sketch);
+			}
+			Map<String, String> tagMap = decoder.getTagMap();
+			if (remoteAddr != null) {
+				tagMap.put("remote_addr", remoteAddr);
+			}
+			char c = '?';
+			for (Map.Entry<String, String> tag : tagMap.entrySet()) {
+				sb.append(c).
+						append(Strings.encodeUrl(truncate(tag.getKey(), maxTagNameLen))).
+						append('=').
+						append(Strings.encodeUrl(truncate(tag.getValue(), maxTagValueLen)));
+				c = '&';
+			}
+			sb.append('\n');
+		}
+	}
+
+	// Inflates and parses one packet, from UDP or a TCP frame
+	private static void receive(byte[] buf, int len,
+			String remoteAddr, PacketInflater inflater) {
+		// Inflate into the buffer of this thread
+		Inflater inflater_ = inflater.inflater;
+		byte[] out = inflater.buf;
+		int outLen = 0;
+		inflater_.reset();
+		inflater_.setInput(buf, 0, len);
+		try {
+			while (!inflater_.finished()) {
+				if (outLen == out.length) {
+					// Prevent attack
+					if (out.length >= MAX_BUFFER_SIZE) {
+						break;
+					}
+					out = Arrays.copyOf(out, Math.min(out.length * 2, MAX_BUFFER_SIZE));
+					inflater.buf = out;
+				}
+				int bytesRead = inflater_.inflate(out, outLen, out.length - outLen);
+				if (bytesRead > 0) {
+					outLen += bytesRead;
+				} else if (inflater_.needsDictionary()) {
+					byte[] dictionary = MetricDictionary.get(inflater_.getAdler());
+					if (dictionary == null) {
+						Log.w("Unknown dictionary from " + remoteAddr);
+						break;
+					}
+					inflater_.setDictionary(dictionary);
+				} else {
+					// Truncated
+					break;
+				}
+			}
+		} catch (DataFormatException e) {
+			Log.w("Unable to inflate packet from " + remoteAddr);
+			// Continue to parse rows
+		}
+
+		Map<NameTime, StringBuilder> metricMap = new HashMap<>();
+		Map<String, Integer> countMap = new HashMap<>();
+		if (MetricDecoder.isBinary(out, 0, outLen)) {
+			try {
+				receive(new MetricDecoder(out, 0, outLen),
+						enableRemoteAddr ? remoteAddr : null, metricMap, countMap);
+			} catch (IOException e) {
+				Log.w("Incorrect format from " + remoteAddr + ": " + e.getMessage());
+			}
+		} else {
+			MetricParser parser = inflater.parser;
+			parser.reset(out, 0, outLen);
+			while (parser.next()) {
+				// Parse name, time, value and tags
+				if (parser.getFieldCount() < 2) {
+					Log.w("Incorrect format: [" + parser.getLine() + "]");
+					continue;
+				}
+				String name = truncate(parser.getString(0), MAX_METRIC_LEN);
+				Integer count = countMap.get(name);
+				countMap.put(name, Integer.valueOf(count == null ?
+						1 : count.intValue() + 1));
+				if (parser.getFieldCount() > 2) {
+					// <name>/<time>/<count>/<sum>/<max>/<min>/<sqr>[?<tag>=<value>[&...]]
+					// Aggregation-before-collection metric, insert immediately
+					NameTime key = new NameTime();
+					key.name = name;
+					key.time = (int) parser.getLong(1, currentMinute.get());
+					// Stored as is, without decoding
+					String line = parser.getLine(2);
+					if (enableRemoteAddr) {
+						int index = line.indexOf('?');
+						line += (index < 0 ? '?' : '&') + "remote_addr=" + remoteAddr;
+					}
+					metricMap.computeIfAbsent(key, k -> new StringBuilder()).
+							append(line).append('\n');
+					continue;
+				}
+				// <name>/<value>[?<tag>=<value>[&...]]
+				// Aggregation-during-collection metric, aggregate first
+				Map<String, String> tagMap = new HashMap<>();
+				for (int i = 0; i < parser.getTagCount(); i ++) {
+					tagMap.put(truncate(parser.getTagKey(i), maxTagNameLen),
+							truncate(parser.getTagValue(i), maxTagValueLen));
+				}
+				if (enableRemoteAddr) {
+					tagMap.put("remote_addr", remoteAddr);
+				}
+				Metric.put(name, __(parser.getDouble(1)), tagMap);
+			}
+		}
+		if (verbose) {
+			Log.d("Metrics received from " + remoteAddr + ": " + countMap);
+		}
+		if (enableRemoteAddr) {
+			Metric.put("metric.throughput", len, "remote_addr", remoteAddr);
+			countMap.forEach((name, value) -> {
+				Metric.put("metric.rows", value.intValue(), "name", name,
+						"remote_addr", remoteAddr);
+			});
+		} else {
+			Metric.put("metric.throughput", len);
+			countMap.forEach((name, value) -> {
+				Metric.put("metric.rows", value.intValue(), "name", name);
+			});
+		}
+		// Insert aggregation-before-collection metrics
+		if (!metricMap.isEmpty()) {
+			executor.execute(Runnables.wrap(() -> {
+				metricMap.forEach((key, sb) -> {
+					insert(key.name, key.time, sb);
+				});
+			}));
+		}
+	}
+
+	private static void accept(Selector selector,
+			ServerSocketChannel server) throws IOException {
+		SocketChannel channel = server.accept();
+		if (channel == null) {
+			return;
+		}
+		String remoteAddr = ((InetSocketAddress) channel.getRemoteAddress()).
+				getAddress().getHostAddress();
+		if (allowedRemotes != null && !allowedRemotes.contains(remoteAddr)) {
+			Log.w(remoteAddr + " not allowed");
+			channel.close();
+			return;
+		}
+		TcpConnection conn = new TcpConnection();
+		conn.remoteAddr = remoteAddr;
+		channel.configureBlocking(false);
+		channel.register(selector, SelectionKey.OP_READ, conn);
+	}
+
+	// Returns false if the connection should be closed
+	private static boolean read(SocketChannel channel,
+			TcpConnection conn, PacketInflater inflater) throws IOException {
+		while (true) {
+			ByteBuffer bb = conn.frame == null ? conn.header : conn.frame;
+			if (channel.read(bb) < 0) {
+				return false;
+			}
+			if (bb.hasRemaining()) {
+				return true;
+			}
+			if (conn.frame == null) {
+				int len = conn.header.getInt(0);
+				if (len <= 0 || len > MetricClient.MAX_FRAME_SIZE) {
+					Log.w("Incorrect frame length " + len + " from " + conn.remoteAddr);
+					return false;
+				}
+				conn.frame = ByteBuffer.wrap(conn.buf, 0, len);
+				continue;
+			}
+			receive(conn.buf, conn.frame.limit(), conn.remoteAddr, inflater);
+			conn.header.clear();
+			conn.frame = null;
+			conn.ack.clear();
+			if (channel.write(conn.ack) == 0) {
+				// Acknowledgements are not being read
+				return false;
+			}
+		}
+	}
+
+	// <length> <deflated packet> from "MetricClient", one byte is sent back
+	// after the frame is parsed, so the client knows what to resend
+	private static void acceptTcp(ServerSocketChannel server) {
+		PacketInflater inflater = new PacketInflater();
+		try (Selector selector = Selector.open()) {
+			server.configureBlocking(false);
+			server.register(selector, SelectionKey.OP_ACCEPT);
+			// Closed by main thread
+			while (server.isOpen()) {
+				selector.select(1000);
+				Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+				while (it.hasNext()) {
+					SelectionKey key = it.next();
+					it.remove();
+					if (!key.isValid()) {
+						continue;
+					}
+					if (key.isAcceptable()) {
+						try {
+							accept(selector, server);
+						} catch (IOException e) {
+							Log.w(e.getMessage());
+						}
+						continue;
+					}
+					SocketChannel channel = (SocketChannel) key.channel();
+					boolean open;
+					try {
+						open = key.isReadable() && read(channel,
+								(TcpConnection) key.attachment(), inflater);
+					} catch (IOException e) {
+						open = false;
+					} catch (RuntimeException e) {
+						// Only this connection is dropped, not the listener
+						Log.e(e);
+						open = false;
+					}
+					if (!open) {
+						channel.close();
+					}
+				}
+			}
+			for (SelectionKey key : selector.keys()) {
+				key.channel().close();
+			}
+		} catch (IOException e) {
+			Log.w(e.getMessage());
+		} finally {
+			inflater.inflater.end();
+		}
+	}
+
+	// Parses packets queued by the receiving thread, each worker has its own Inflater,
+	// and drains the queue after the socket is closed
+	private static void parseUdp() {
+		PacketInflater inflater = new PacketInflater();
+		try {
+			UdpPacket packet;
+			while ((packet = udpQueue.poll(1, TimeUnit.SECONDS)) != null || !udpStopped) {
+				if (packet == null) {
+					continue;
+				}
+				try {
+					receive(packet.buf, packet.len, packet.remoteAddr, inflater);
+				} catch (RuntimeException e) {
+					Log.e(e);
+				}
+				(packet.buf.length > MetricClient.MAX_PACKET_SIZE ?
+						udpLargePool : udpPool).offer(packet);
+			}
+		} catch (InterruptedException e) {
+			// Interrupted by shutdown
+		} finally {
+			inflater.inflater.end();
+		}
+	}
+
 	public static void main(String[] args) {
 		if (!service.startup(args)) {
 			return;
@@ -425,7 +752,7 @@ public class Collector {
 		System.setProperty("java.util.logging.SimpleFormatter.format",
 				"%1$tY-%1$tm-%1$td %1$tk:%1$tM:%1$tS.%1$tL %2$s%n%4$s: %5$s%6$s%n");
 		Logger logger = Log.getAndSet(Conf.openLogger("Collector.", 16777216, 10));
-		ExecutorService executor = Executors.newCachedThreadPool();
+		executor = Executors.newCachedThreadPool();
 		ScheduledThreadPoolExecutor timer = new ScheduledThreadPoolExecutor(2);
 
 		Properties p = Conf.load("Collector");
@@ -440,20 +767,34 @@ public class Collector {
 		maxTagNameLen = Numbers.parseInt(p.getProperty("max_tag_name_len"));
 		maxTagValueLen = Numbers.parseInt(p.getProperty("max_tag_value_len"));
 		int quarterDelay = Numbers.parseInt(p.getProperty("quarter_delay"), 2);
-		boolean enableRemoteAddr = Conf.getBoolean(p.getProperty("remote_addr"), true);
+		enableRemoteAddr = Conf.getBoolean(p.getProperty("remote_addr"), true);
 		String allowedRemote = p.getProperty("allowed_remote");
-		Set<String> allowedRemotes = null;
+		allowedRemotes = null;
 		if (allowedRemote != null) {
 			allowedRemotes = new HashSet<>(Arrays.asList(allowedRemote.split("[,;]")));
 		}
 		verbose = Conf.getBoolean(p.getProperty("verbose"), false);
+		boolean tcp = Conf.getBoolean(p.getProperty("tcp"), false);
+		int udpWorkers = Math.max(Numbers.parseInt(p.getProperty("udp_workers"),
+				Runtime.getRuntime().availableProcessors()), 1);
+		int udpQueueSize = Math.max(Numbers.parseInt(p.getProperty("udp_queue"), 4096), 16);
+		udpQueue = new ArrayBlockingQueue<>(udpQueueSize);
+		// Enough for a full queue and the packets being parsed,
+		// so no buffer is allocated once the pool is filled
+		udpPool = new ArrayBlockingQueue<>(udpQueueSize + udpWorkers);
+		// Large buffers are 64 KB each, so fewer of them are kept, 16 MB by default
+		udpLargePool = new ArrayBlockingQueue<>(Math.max(Numbers.
+				parseInt(p.getProperty("udp_large_pool"), 256), 1));
+		int udpRcvbuf = Numbers.parseInt(p.getProperty("udp_rcvbuf"));
+		ExecutorService workers = Executors.newFixedThreadPool(udpWorkers);
 
 		long start = System.currentTimeMillis();
-		AtomicInteger currentMinute = new AtomicInteger((int) (start / Time.MINUTE));
+		currentMinute = new AtomicInteger((int) (start / Time.MINUTE));
 		Runnable minutely = null;
 		try (
 			DatagramSocket socket = new DatagramSocket(new
 					InetSocketAddress(host, port));
+			ServerSocketChannel server = tcp ? ServerSocketChannel.open() : null;
 			ManagementMonitor monitor = new ManagementMonitor("metric.server");
 		) {
 			String dataDir = Conf.getAbsolutePath("data");
@@ -477,14 +818,33 @@ public class Collector {
 			});
 			timer.scheduleAtFixedRate(minutely, Time.MINUTE - start % Time.MINUTE,
 					Time.MINUTE, TimeUnit.MILLISECONDS);
-			timer.scheduleAtFixedRate(monitor, 5, 5, TimeUnit.SECONDS);
+			Metric.registerSampler(monitor);
+			Metric.registerGauge("metric.queue.depth", udpQueue::size, "stage", "udp");
+			timer.scheduleAtFixedRate(Runnables.wrap(Metric::sample), 5, 5, TimeUnit.SECONDS);
+			if (udpRcvbuf > 0) {
+				socket.setReceiveBufferSize(udpRcvbuf);
+				// Limited by "net.core.rmem_max" on Linux
+				if (socket.getReceiveBufferSize() < udpRcvbuf) {
+					Log.w("UDP receive buffer limited to " +
+							socket.getReceiveBufferSize() + " bytes");
+				}
+			}
 			service.register(socket);
+			if (server != null) {
+				server.bind(new InetSocketAddress(host, port));
+				executor.execute(Runnables.wrap(() -> acceptTcp(server)));
+			}
 
-			Log.i("Metric Collector Started on UDP " + host + ":" + port);
+			Log.i("Metric Collector Started on " +
+					(server == null ? "UDP " : "UDP and TCP ") + host + ":" + port);
+			for (int i = 0; i < udpWorkers; i ++) {
+				workers.execute(Runnables.wrap(() -> parseUdp()));
+			}
+			byte[] buf = new byte[65536];
+			DatagramPacket packet = new DatagramPacket(buf, buf.length);
 			while (!Thread.interrupted()) {
 				// Receive
-				byte[] buf = new byte[65536];
-				DatagramPacket packet = new DatagramPacket(buf, buf.length);
+				packet.setLength(buf.length);
 				// Blocked, or closed by shutdown handler
 				socket.receive(packet);
 				int len = packet.getLength();
@@ -493,104 +853,21 @@ public class Collector {
 					Log.w(remoteAddr + " not allowed");
 					continue;
 				}
-				// Inflate
-				ByteArrayQueue baq = new ByteArrayQueue();
-				byte[] buf_ = new byte[2048];
-				try (InflaterInputStream inflater = new InflaterInputStream(new
-						ByteArrayInputStream(buf, 0, len))) {
-					int bytesRead;
-					while ((bytesRead = inflater.read(buf_)) > 0) {
-						baq.add(buf_, 0, bytesRead);
-						// Prevent attack
-						if (baq.length() > MAX_BUFFER_SIZE) {
-							break;
-						}
-					}
-				} catch (IOException e) {
-					Log.w("Unable to inflate packet from " + remoteAddr);
-					// Continue to parse rows
-				}
-
-				Map<NameTime, StringBuilder> metricMap = new HashMap<>();
-				Map<String, Integer> countMap = new HashMap<>();
-				for (String line : baq.toString().split("\n")) {
-					// Truncate tailing '\r'
-					int length = line.length();
-					if (length > 0 && line.charAt(length - 1) == '\r') {
-						line = line.substring(0, length - 1);
-					}
-					// Parse name, time, value and tags
-					int slash0 = line.indexOf('/');
-					if (slash0 < 0) {
-						Log.w("Incorrect format: [" + line + "]");
-						continue;
-					}
-					String name = decode(line.substring(0, slash0), MAX_METRIC_LEN);
-					Integer count = countMap.get(name);
-					countMap.put(name, Integer.valueOf(count == null ?
-							1 : count.intValue() + 1));
-					int slash1 = line.indexOf('/', slash0 + 1);
-					if (slash1 > 0) {
-						// <name>/<time>/<count>/<sum>/<max>/<min>/<sqr>[?<tag>=<value>[&...]]
-						// Aggregation-before-collection metric, insert immediately
-						NameTime key = new NameTime();
-						key.name = name;
-						key.time = Numbers.parseInt(line.substring(slash0 + 1, slash1),
-								currentMinute.get());
-						line = line.substring(slash1 + 1);
-						if (enableRemoteAddr) {
-							int index = line.indexOf('?');
-							line += (index < 0 ? '?' : '&') + "remote_addr=" + remoteAddr;
-						}
-						metricMap.computeIfAbsent(key, k -> new StringBuilder()).
-								append(line).append('\n');
-						continue;
-					}
-					// <name>/<value>[?<tag>=<value>[&...]]
-					// Aggregation-during-collection metric, aggregate first
-					Map<String, String> tagMap = new HashMap<>();
-					int index = line.indexOf('?');
-					double value;
-					if (index < 0) {
-						value = __(line.substring(slash0 + 1));
-					} else {
-						value = __(line.substring(slash0 + 1, index));
-						String query = line.substring(index + 1);
-						for (String tag : query.split("&")) {
-							index = tag.indexOf('=');
-							if (index >= 0) {
-								tagMap.put(decode(tag.substring(0, index), maxTagNameLen),
-										decode(tag.substring(index + 1), maxTagValueLen));
-							}
-						}
-					}
-					if (enableRemoteAddr) {
-						tagMap.put("remote_addr", remoteAddr);
-					}
-					Metric.put(name, value, tagMap);
-				}
-				if (verbose) {
-					Log.d("Metrics received from " + remoteAddr + ": " + countMap);
-				}
-				if (enableRemoteAddr) {
-					Metric.put("metric.throughput", len, "remote_addr", remoteAddr);
-					countMap.forEach((name, value) -> {
-						Metric.put("metric.rows", value.intValue(), "name", name,
-								"remote_addr", remoteAddr);
-					});
-				} else {
-					Metric.put("metric.throughput", len);
-					countMap.forEach((name, value) -> {
-						Metric.put("metric.rows", value.intValue(), "name", name);
-					});
+				// Parsed by workers, so a burst is buffered here rather than in the kernel
+				// Packets above "MAX_PACKET_SIZE" are sent by "MetricClient" with
+				// fragmentation on, and get buffers as large as "buf" from their own pool
+				boolean large = len > MetricClient.MAX_PACKET_SIZE;
+				ArrayBlockingQueue<UdpPacket> pool = large ? udpLargePool : udpPool;
+				UdpPacket udp = pool.poll();
+				if (udp == null) {
+					udp = new UdpPacket(large ? buf.length : MetricClient.MAX_PACKET_SIZE);
 				}
-				// Insert aggregation-before-collection metrics
-				if (!metricMap.isEmpty()) {
-					executor.execute(Runnables.wrap(() -> {
-						metricMap.forEach((key, sb) -> {
-							insert(key.name, key.time, sb);
-						});
-					}));
+				System.arraycopy(buf, 0, udp.buf, 0, len);
+				udp.len = len;
+				udp.remoteAddr = remoteAddr;
+				if (!udpQueue.offer(udp)) {
+					Metric.put("metric.queue.dropped", 1, "stage", "udp");
+					pool.offer(udp);
 				}
 			}
 		} catch (IOException e) {
@@ -598,6 +875,8 @@ public class Collector {
 		} catch (Error | RuntimeException e) {
 			Log.e(e);
 		}
+		udpStopped = true;
+		Runnables.shutdown(workers);
 		Runnables.shutdown(timer);
 		// Do not do file operations in main thread (may be interrupted)
 		if (minutely != null) {
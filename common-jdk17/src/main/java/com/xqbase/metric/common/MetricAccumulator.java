@@ -0,0 +1,171 @@
+package com.xqbase.metric.common;
+
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+
+class MetricAccumulator {
+	private static final int MAX_CELLS;
+
+	static {
+		int cpus = Runtime.getRuntime().availableProcessors();
+		int cells = 1;
+		while (cells < cpus) {
+			cells <<= 1;
+		}
+		MAX_CELLS = cells;
+	}
+
+	private static final AtomicIntegerFieldUpdater<Cell>
+			BUSY = AtomicIntegerFieldUpdater.newUpdater(Cell.class, "busy");
+
+	private static final class Cell {
+		volatile int busy;
+		long count;
+		double sum, max, min, sqr;
+		MetricSketch sketch;
+
+		Cell(boolean sketched) {
+			sketch = sketched ? new MetricSketch() : null;
+			reset();
+		}
+
+		void reset() {
+			count = 0;
+			sum = 0;
+			max = Double.NEGATIVE_INFINITY;
+			min = Double.POSITIVE_INFINITY;
+			sqr = 0;
+			if (sketch != null) {
+				sketch.clear();
+			}
+		}
+
+		boolean tryLock() {
+			return busy == 0 && BUSY.compareAndSet(this, 0, 1);
+		}
+
+		void lock() {
+			while (!tryLock()) {
+				Thread.yield();
+			}
+		}
+
+		void unlock() {
+			busy = 0;
+		}
+	}
+
+	private static int hash() {
+		long id = Thread.currentThread().getId();
+		int h = (int) (id ^ (id >>> 32)) * 0x9E3779B9;
+		return h ^ (h >>> 16);
+	}
+
+	private boolean sketched;
+	// Writers go to the bank of "Metric.epoch", "Metric.removeAll" flips
+	// the epoch and then drains the other bank without blocking writers
+	private volatile Cell[] cells0, cells1;
+	private volatile boolean retired = false;
+
+	MetricAccumulator(boolean sketched) {
+		this.sketched = sketched;
+		cells0 = new Cell[] {new Cell(sketched)};
+		cells1 = new Cell[] {new Cell(sketched)};
+	}
+
+	boolean isSketched() {
+		return sketched;
+	}
+
+	private Cell[] cells(int bank) {
+		return (bank & 1) == 0 ? cells0 : cells1;
+	}
+
+	private synchronized void grow(int bank, Cell[] cs) {
+		if (retired || cells(bank) != cs) {
+			return;
+		}
+		Cell[] newCells = new Cell[cs.length << 1];
+		System.arraycopy(cs, 0, newCells, 0, cs.length);
+		for (int i = cs.length; i < newCells.length; i ++) {
+			newCells[i] = new Cell(sketched);
+		}
+		if ((bank & 1) == 0) {
+			cells0 = newCells;
+		} else {
+			cells1 = newCells;
+		}
+	}
+
+	// Returns false if retired, then the value must go to a new accumulator
+	boolean add(double value) {
+		double d = Double.isNaN(value) ? 0 : value;
+		int h = hash();
+		for (int i = 0; ; i ++) {
+			int epoch = Metric.epoch;
+			Cell[] cs = cells(epoch);
+			Cell cell = cs[(h + i) & (cs.length - 1)];
+			if (!cell.tryLock()) {
+				// Contended, spread over more cells and probe the next one
+				if (cs.length < MAX_CELLS) {
+					grow(epoch, cs);
+				} else if (i >= cs.length) {
+					Thread.yield();
+				}
+				continue;
+			}
+			if (retired) {
+				cell.unlock();
+				return false;
+			}
+			if (epoch != Metric.epoch) {
+				// Flipped before locked, the bank may be being drained
+				cell.unlock();
+				continue;
+			}
+			cell.count ++;
+			cell.sum += d;
+			if (d > cell.max) {
+				cell.max = d;
+			}
+			if (d < cell.min) {
+				cell.min = d;
+			}
+			cell.sqr += d * d;
+			if (cell.sketch != null) {
+				cell.sketch.add(d);
+			}
+			cell.unlock();
+			return true;
+		}
+	}
+
+	// Accumulates cells of the bank into slot "index" of "batch" and resets them,
+	// each "add" falls entirely before or after the snapshot of its cell
+	void drain(int bank, MetricBatch batch, int index) {
+		MetricSketch sketch = batch.sketches[index];
+		for (Cell cell : cells(bank)) {
+			cell.lock();
+			if (cell.count > 0) {
+				batch.counts[index] += cell.count;
+				batch.sums[index] += cell.sum;
+				batch.maxs[index] = Math.max(batch.maxs[index], cell.max);
+				batch.mins[index] = Math.min(batch.mins[index], cell.min);
+				batch.sqrs[index] += cell.sqr;
+				if (sketched) {
+					sketch.add(cell.sketch);
+				}
+				cell.reset();
+			}
+			cell.unlock();
+		}
+	}
+
+	// After retired, "add" always returns false, so both banks can be drained
+	void retire(MetricBatch batch, int index) {
+		synchronized (this) {
+			retired = true;
+		}
+		drain(0, batch, index);
+		drain(1, batch, index);
+	}
+}
\ No newline at end of file
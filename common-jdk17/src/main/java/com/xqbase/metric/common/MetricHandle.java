@@ -0,0 +1,28 @@
+package com.xqbase.metric.common;
+
+import java.util.Map;
+
+public class MetricHandle {
+	private MetricKey key;
+	private volatile MetricAccumulator acc = null;
+
+	MetricHandle(MetricKey key) {
+		this.key = key;
+	}
+
+	public String getName() {
+		return key.getName();
+	}
+
+	public Map<String, String> getTagMap() {
+		return key.getTagMap();
+	}
+
+	public void record(double value) {
+		MetricAccumulator acc_ = acc;
+		if (acc_ == null || !acc_.add(value)) {
+			// Not resolved yet, or retired by "Metric.removeAll" after an idle interval
+			acc = Metric.put(key, value);
+		}
+	}
+}
\ No newline at end of file
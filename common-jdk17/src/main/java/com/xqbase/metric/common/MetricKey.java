@@ -1,7 +1,12 @@
 package com.xqbase.metric.common;
 
-import java.util.HashMap;
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Arrays;
+import java.util.Iterator;
 import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
 
 public class MetricKey {
 	public static void putTagMap(Map<String, String> tagMap,
@@ -15,18 +20,152 @@ public class MetricKey {
 		}
 	}
 
+	private static final String[] EMPTY = new String[0];
+
+	private class TagMap extends AbstractMap<String, String> {
+		@Override
+		public int size() {
+			return size;
+		}
+
+		@Override
+		public boolean containsKey(Object key) {
+			return key instanceof String && indexOf((String) key) >= 0;
+		}
+
+		@Override
+		public String get(Object key) {
+			if (!(key instanceof String)) {
+				return null;
+			}
+			int index = indexOf((String) key);
+			return index < 0 ? null : tagValues[index];
+		}
+
+		@Override
+		public Set<Map.Entry<String, String>> entrySet() {
+			return new AbstractSet<Map.Entry<String, String>>() {
+				@Override
+				public int size() {
+					return size;
+				}
+
+				@Override
+				public Iterator<Map.Entry<String, String>> iterator() {
+					return new Iterator<Map.Entry<String, String>>() {
+						private int index = 0;
+
+						@Override
+						public boolean hasNext() {
+							return index < size;
+						}
+
+						@Override
+						public Map.Entry<String, String> next() {
+							if (index >= size) {
+								throw new NoSuchElementException();
+							}
+							Map.Entry<String, String> entry = new SimpleImmutableEntry<>(
+									tagKeys[index], tagValues[index]);
+							index ++;
+							return entry;
+						}
+
+						@Override
+						public void remove() {
+							throw new UnsupportedOperationException();
+						}
+					};
+				}
+			};
+		}
+	}
+
 	private String name;
-	private Map<String, String> tagMap;
+	// Sorted by tag key, and only the first "size" elements are used
+	private String[] tagKeys, tagValues;
+	private int size, hash;
+	private volatile Object attachment = null;
+
+	private int indexOf(String key) {
+		return Arrays.binarySearch(tagKeys, 0, size, key);
+	}
+
+	// Insertion sort, as there are only a few tags in a key
+	private void put(String key, String value) {
+		int index = indexOf(key);
+		if (index >= 0) {
+			tagValues[index] = value;
+			return;
+		}
+		index = -index - 1;
+		System.arraycopy(tagKeys, index, tagKeys, index + 1, size - index);
+		System.arraycopy(tagValues, index, tagValues, index + 1, size - index);
+		tagKeys[index] = key;
+		tagValues[index] = value;
+		size ++;
+	}
+
+	private void init(String name_, int capacity) {
+		name = name_;
+		if (capacity == 0) {
+			tagKeys = tagValues = EMPTY;
+		} else {
+			tagKeys = new String[capacity];
+			tagValues = new String[capacity];
+		}
+		size = 0;
+	}
+
+	private void seal() {
+		if (size < tagKeys.length) {
+			tagKeys = Arrays.copyOf(tagKeys, size);
+			tagValues = Arrays.copyOf(tagValues, size);
+		}
+		int h = name.hashCode();
+		for (int i = 0; i < size; i ++) {
+			h = h * 31 + tagKeys[i].hashCode();
+			h = h * 31 + tagValues[i].hashCode();
+		}
+		hash = h;
+	}
 
 	public MetricKey(String name, Map<String, String> tagMap) {
-		this.name = name;
-		this.tagMap = tagMap;
+		init(name, tagMap.size());
+		for (Map.Entry<String, String> tag : tagMap.entrySet()) {
+			String key = tag.getKey();
+			String value = tag.getValue();
+			if (key != null && value != null) {
+				put(key, value);
+			}
+		}
+		seal();
 	}
 
 	public MetricKey(String name, String... tagPairs) {
-		this.name = name;
-		tagMap = new HashMap<>();
-		putTagMap(tagMap, tagPairs);
+		init(name, tagPairs.length / 2);
+		for (int i = 0; i < tagPairs.length - 1; i += 2) {
+			String key = tagPairs[i];
+			String value = tagPairs[i + 1];
+			if (key != null && value != null) {
+				put(key, value);
+			}
+		}
+		seal();
+	}
+
+	// Same tag keys with all tag values replaced, so overflowed combinations share one key
+	MetricKey fold(String value) {
+		if (size == 0) {
+			return this;
+		}
+		MetricKey key = new MetricKey(name);
+		key.tagKeys = tagKeys;
+		key.tagValues = new String[size];
+		Arrays.fill(key.tagValues, value);
+		key.size = size;
+		key.seal();
+		return key;
 	}
 
 	public String getName() {
@@ -34,17 +173,47 @@ public class MetricKey {
 	}
 
 	public Map<String, String> getTagMap() {
-		return tagMap;
+		return new TagMap();
+	}
+
+	// Tags in key order, for iterating without a map
+	public int getTagCount() {
+		return size;
+	}
+
+	public String getTagKey(int i) {
+		return tagKeys[i];
+	}
+
+	public String getTagValue(int i) {
+		return tagValues[i];
+	}
+
+	// Cached by the sender, e.g. encoded name and tags, lives as long as the key
+	public Object attachment() {
+		return attachment;
+	}
+
+	public void attach(Object attachment) {
+		this.attachment = attachment;
 	}
 
 	@Override
 	public boolean equals(Object obj) {
+		if (obj == this) {
+			return true;
+		}
+		if (!(obj instanceof MetricKey)) {
+			return false;
+		}
 		MetricKey metricKey = (MetricKey) obj;
-		return metricKey.name.equals(name) && metricKey.tagMap.equals(tagMap);
+		return metricKey.hash == hash && metricKey.name.equals(name) &&
+				Arrays.equals(metricKey.tagKeys, tagKeys) &&
+				Arrays.equals(metricKey.tagValues, tagValues);
 	}
 
 	@Override
 	public int hashCode() {
-		return name.hashCode() + tagMap.hashCode();
+		return hash;
 	}
 }
\ No newline at end of file
@@ -0,0 +1,352 @@
+package com.xqbase.metric.common;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+// Scans text rows of "<field>/<field>/...[?<key>=<value>[&...]]" in UTF-8 bytes,
+// line by line and in place, url-encoded strings are decoded only when '%' or '+'
+// is present, and numbers are parsed without Strings. Used by one thread at a time.
+public class MetricParser {
+	private static MetricStrings shared = new MetricStrings(65536);
+	// Powers of 10 which are exact in double
+	private static final double[] POWERS = new double[23];
+
+	static {
+		double d = 1;
+		for (int i = 0; i < POWERS.length; i ++) {
+			POWERS[i] = d;
+			d *= 10;
+		}
+	}
+
+	private static int hex(byte c) {
+		if (c >= '0' && c <= '9') {
+			return c - '0';
+		}
+		if (c >= 'A' && c <= 'F') {
+			return c - 'A' + 10;
+		}
+		if (c >= 'a' && c <= 'f') {
+			return c - 'a' + 10;
+		}
+		return -1;
+	}
+
+	private MetricStrings strings;
+	private byte[] b;
+	private int pos, end, lineStart, lineEnd;
+	// Start and end of each field, and start, '=' and end of each tag
+	private int fieldCount = 0, tagCount = 0;
+	private int[] fields = new int[16], tags = new int[24];
+	private byte[] decoded = new byte[256];
+
+	// Names and tags are interned by a dictionary shared in the JVM
+	public MetricParser() {
+		this(shared);
+	}
+
+	public MetricParser(MetricStrings strings) {
+		this.strings = strings;
+	}
+
+	public void reset(byte[] b, int off, int len) {
+		this.b = b;
+		pos = off;
+		end = off + len;
+		fieldCount = tagCount = 0;
+	}
+
+	private void addField(int start, int end_) {
+		if (fieldCount * 2 == fields.length) {
+			fields = Arrays.copyOf(fields, fields.length * 2);
+		}
+		fields[fieldCount * 2] = start;
+		fields[fieldCount * 2 + 1] = end_;
+		fieldCount ++;
+	}
+
+	private void addTag(int start, int eq, int end_) {
+		if (tagCount * 3 == tags.length) {
+			tags = Arrays.copyOf(tags, tags.length * 2);
+		}
+		tags[tagCount * 3] = start;
+		tags[tagCount * 3 + 1] = eq;
+		tags[tagCount * 3 + 2] = end_;
+		tagCount ++;
+	}
+
+	// Fields are split by '/' before '?', tags without a key or '=' are skipped
+	private void scan() {
+		fieldCount = tagCount = 0;
+		int start = lineStart;
+		int i = lineStart;
+		while (i < lineEnd && b[i] != '?') {
+			if (b[i] == '/') {
+				addField(start, i);
+				start = i + 1;
+			}
+			i ++;
+		}
+		addField(start, i);
+		if (i == lineEnd) {
+			return;
+		}
+		start = i + 1;
+		int eq = -1;
+		for (i = start; i <= lineEnd; i ++) {
+			if (i == lineEnd || b[i] == '&') {
+				if (eq > start) {
+					addTag(start, eq, i);
+				}
+				start = i + 1;
+				eq = -1;
+			} else if (b[i] == '=' && eq < 0) {
+				eq = i;
+			}
+		}
+	}
+
+	// Moves to the next non-empty line without trailing '\r', returns false at the end
+	public boolean next() {
+		while (pos < end) {
+			lineStart = pos;
+			int i = pos;
+			while (i < end && b[i] != '\n') {
+				i ++;
+			}
+			pos = i + 1;
+			lineEnd = i > lineStart && b[i - 1] == '\r' ? i - 1 : i;
+			if (lineEnd > lineStart) {
+				scan();
+				return true;
+			}
+		}
+		fieldCount = tagCount = 0;
+		return false;
+	}
+
+	public int getLineOffset() {
+		return lineStart;
+	}
+
+	public int getLineLength() {
+		return lineEnd - lineStart;
+	}
+
+	public String getLine() {
+		return new String(b, lineStart, lineEnd - lineStart, StandardCharsets.UTF_8);
+	}
+
+	// From field "i" to the end of the line, not decoded
+	public String getLine(int i) {
+		int start = fields[i * 2];
+		return new String(b, start, lineEnd - start, StandardCharsets.UTF_8);
+	}
+
+	public int getFieldCount() {
+		return fieldCount;
+	}
+
+	public int getTagCount() {
+		return tagCount;
+	}
+
+	// Like "URLDecoder", but a malformed '%' is kept
+	private String decode(int start, int end_) {
+		if (decoded.length < end_ - start) {
+			decoded = new byte[end_ - start];
+		}
+		int len = 0;
+		for (int i = start; i < end_; i ++) {
+			byte c = b[i];
+			if (c == '+') {
+				c = ' ';
+			} else if (c == '%' && i + 2 < end_) {
+				int hi = hex(b[i + 1]);
+				int lo = hex(b[i + 2]);
+				if (hi >= 0 && lo >= 0) {
+					c = (byte) (hi << 4 | lo);
+					i += 2;
+				}
+			}
+			decoded[len ++] = c;
+		}
+		return new String(decoded, 0, len, StandardCharsets.UTF_8);
+	}
+
+	private String getString(int start, int end_) {
+		int hash = 0;
+		boolean encoded = false;
+		for (int i = start; i < end_; i ++) {
+			byte c = b[i];
+			hash = hash * 31 + c;
+			if (c == '%' || c == '+') {
+				encoded = true;
+			}
+		}
+		int len = end_ - start;
+		String s = strings.get(b, start, len, hash);
+		if (s == null) {
+			s = encoded ? decode(start, end_) :
+					new String(b, start, len, StandardCharsets.UTF_8);
+			strings.put(b, start, len, hash, s);
+		}
+		return s;
+	}
+
+	// Url-decoded and interned
+	public String getString(int i) {
+		return getString(fields[i * 2], fields[i * 2 + 1]);
+	}
+
+	public String getTagKey(int i) {
+		return getString(tags[i * 3], tags[i * 3 + 1]);
+	}
+
+	public String getTagValue(int i) {
+		return getString(tags[i * 3 + 1] + 1, tags[i * 3 + 2]);
+	}
+
+	private long parseLong(int start, int end_, long defaultValue) {
+		int i = start;
+		boolean negative = i < end_ && b[i] == '-';
+		if (negative || i < end_ && b[i] == '+') {
+			i ++;
+		}
+		if (i == end_) {
+			return defaultValue;
+		}
+		if (end_ - i > 18) {
+			try {
+				return Long.parseLong(new String(b, start, end_ - start,
+						StandardCharsets.ISO_8859_1));
+			} catch (NumberFormatException e) {
+				return defaultValue;
+			}
+		}
+		long value = 0;
+		for (; i < end_; i ++) {
+			int c = b[i] - '0';
+			if (c < 0 || c > 9) {
+				return defaultValue;
+			}
+			value = value * 10 + c;
+		}
+		return negative ? -value : value;
+	}
+
+	public long getLong(int i, long defaultValue) {
+		return parseLong(fields[i * 2], fields[i * 2 + 1], defaultValue);
+	}
+
+	private double parseDouble(int start, int end_) {
+		try {
+			return Double.parseDouble(new String(b, start, end_ - start,
+					StandardCharsets.ISO_8859_1));
+		} catch (NumberFormatException e) {
+			return Double.NaN;
+		}
+	}
+
+	// NaN if not a number. A mantissa below 2^53 scaled by at most 10^22 is exact
+	// in one multiplication or division, others are left to "Double.parseDouble".
+	public double getDouble(int i) {
+		int start = fields[i * 2];
+		int end_ = fields[i * 2 + 1];
+		int j = start;
+		boolean negative = j < end_ && b[j] == '-';
+		if (negative) {
+			j ++;
+		}
+		long mantissa = 0;
+		int digits = 0, scale = 0;
+		boolean dot = false, any = false;
+		for (; j < end_; j ++) {
+			int c = b[j];
+			if (c >= '0' && c <= '9') {
+				if (digits == 18) {
+					return parseDouble(start, end_);
+				}
+				mantissa = mantissa * 10 + c - '0';
+				// Leading zeros are not significant
+				if (mantissa > 0) {
+					digits ++;
+				}
+				if (dot) {
+					scale ++;
+				}
+				any = true;
+			} else if (c == '.' && !dot) {
+				dot = true;
+			} else {
+				break;
+			}
+		}
+		if (!any) {
+			// e.g. "NaN" or "Infinity"
+			return parseDouble(start, end_);
+		}
+		int exp = 0;
+		if (j < end_) {
+			if (b[j] != 'E' && b[j] != 'e') {
+				return parseDouble(start, end_);
+			}
+			j ++;
+			boolean negativeExp = j < end_ && b[j] == '-';
+			if (negativeExp || j < end_ && b[j] == '+') {
+				j ++;
+			}
+			if (j == end_ || end_ - j > 3) {
+				return parseDouble(start, end_);
+			}
+			for (; j < end_; j ++) {
+				int c = b[j] - '0';
+				if (c < 0 || c > 9) {
+					return parseDouble(start, end_);
+				}
+				exp = exp * 10 + c;
+			}
+			if (negativeExp) {
+				exp = -exp;
+			}
+		}
+		exp -= scale;
+		if (mantissa >= 1L << 53 || exp < -22 || exp > 22) {
+			return parseDouble(start, end_);
+		}
+		double d = exp >= 0 ? mantissa * POWERS[exp] : mantissa / POWERS[-exp];
+		return negative ? -d : d;
+	}
+
+	// "<zero_count>,<lowest_index>,<count>,...", null if missing or malformed
+	public MetricSketch getSketch(int i) {
+		if (i >= fieldCount) {
+			return null;
+		}
+		int start = fields[i * 2];
+		int end_ = fields[i * 2 + 1];
+		if (start == end_) {
+			return null;
+		}
+		int n = 1;
+		for (int j = start; j < end_; j ++) {
+			if (b[j] == ',') {
+				n ++;
+			}
+		}
+		long[] values = new long[n];
+		int from = start;
+		n = 0;
+		for (int j = start; j <= end_; j ++) {
+			if (j == end_ || b[j] == ',') {
+				long value = parseLong(from, j, Long.MIN_VALUE);
+				if (value == Long.MIN_VALUE) {
+					return null;
+				}
+				values[n ++] = value;
+				from = j + 1;
+			}
+		}
+		return MetricSketch.valueOf(values);
+	}
+}
\ No newline at end of file
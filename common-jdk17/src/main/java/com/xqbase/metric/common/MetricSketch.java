@@ -0,0 +1,195 @@
+package com.xqbase.metric.common;
+
+import java.util.Arrays;
+
+public class MetricSketch implements Cloneable {
+	// Log buckets with about 3% relative error, a value v falls into
+	// bucket i where GAMMA ^ (i - 1) < v <= GAMMA ^ i, and values not above
+	// MIN_POSITIVE, including negative ones, are counted as 0, so quantiles
+	// are only meaningful for non-negative metrics, e.g. times and sizes
+	private static final double GAMMA = 1.06;
+	private static final double LOG_GAMMA = Math.log(GAMMA);
+	// 128 buckets cover a range of GAMMA ^ 128 = ~1700x, lowest buckets are
+	// collapsed when exceeded, so high quantiles are always kept accurate
+	private static final int MAX_BUCKETS = 128;
+	private static final double MIN_POSITIVE = 1e-9;
+	// Indexes are kept in [-MAX_INDEX, MAX_INDEX], which covers all finite doubles
+	// above MIN_POSITIVE, so infinity or a bad index from the wire is clamped
+	// and bucket arithmetic never overflows
+	private static final int MAX_INDEX = 12500;
+
+	private static int clamp(long index) {
+		return (int) Math.min(Math.max(index, -MAX_INDEX), MAX_INDEX);
+	}
+
+	public static MetricSketch parse(String s) {
+		if (s == null || s.isEmpty()) {
+			return null;
+		}
+		String[] ss = s.split(",");
+		long[] values = new long[ss.length];
+		try {
+			for (int i = 0; i < ss.length; i ++) {
+				values[i] = Long.parseLong(ss[i]);
+			}
+		} catch (NumberFormatException e) {
+			return null;
+		}
+		return valueOf(values);
+	}
+
+	// <zero_count>, <lowest_index>, <count>, <count>, ...
+	public static MetricSketch valueOf(long[] values) {
+		if (values.length < 2) {
+			return null;
+		}
+		MetricSketch sketch = new MetricSketch();
+		sketch.zeroCount = Math.max(values[0], 0);
+		long index = clamp(values[1]);
+		for (int i = 2; i < values.length; i ++, index ++) {
+			if (values[i] > 0) {
+				sketch.add(clamp(index), values[i]);
+			}
+		}
+		return sketch;
+	}
+
+	private long zeroCount = 0;
+	// Ring buffer, bucket i is at buckets[i & (MAX_BUCKETS - 1)]
+	private long[] buckets = null;
+	private int lo = 0, hi = -1;
+
+	private long bucket(int index) {
+		return buckets[index & (MAX_BUCKETS - 1)];
+	}
+
+	private void add(int index, long count) {
+		if (buckets == null) {
+			buckets = new long[MAX_BUCKETS];
+		}
+		int i = index;
+		if (hi < lo) {
+			lo = hi = i;
+		} else if (i < lo) {
+			if (hi - i < MAX_BUCKETS) {
+				lo = i;
+			} else {
+				// Out of range, count into the lowest bucket
+				lo = hi - MAX_BUCKETS + 1;
+				i = lo;
+			}
+		} else if (i > hi) {
+			int newLo = i - MAX_BUCKETS + 1;
+			if (newLo > lo) {
+				// Collapse lowest buckets into the new lowest one
+				long collapsed = 0;
+				for (int j = lo; j < newLo && j <= hi; j ++) {
+					collapsed += bucket(j);
+					buckets[j & (MAX_BUCKETS - 1)] = 0;
+				}
+				buckets[newLo & (MAX_BUCKETS - 1)] += collapsed;
+				lo = newLo;
+			}
+			hi = i;
+		}
+		buckets[i & (MAX_BUCKETS - 1)] += count;
+	}
+
+	public void add(double value) {
+		if (value > MIN_POSITIVE) {
+			// Positive infinity goes to the highest bucket
+			add(clamp((long) Math.ceil(Math.log(value) / LOG_GAMMA)), 1);
+		} else {
+			// Zero, negative or NaN
+			zeroCount ++;
+		}
+	}
+
+	public void add(MetricSketch sketch) {
+		zeroCount += sketch.zeroCount;
+		for (int i = sketch.lo; i <= sketch.hi; i ++) {
+			long count = sketch.bucket(i);
+			if (count > 0) {
+				add(i, count);
+			}
+		}
+	}
+
+	public void clear() {
+		zeroCount = 0;
+		if (buckets != null) {
+			Arrays.fill(buckets, 0);
+		}
+		lo = 0;
+		hi = -1;
+	}
+
+	public long getCount() {
+		long count = zeroCount;
+		for (int i = lo; i <= hi; i ++) {
+			count += bucket(i);
+		}
+		return count;
+	}
+
+	public boolean isEmpty() {
+		return zeroCount == 0 && hi < lo;
+	}
+
+	public double getQuantile(double q) {
+		long count = getCount();
+		if (count == 0) {
+			return 0;
+		}
+		// Rank in [0, count - 1]
+		long rank = (long) (Math.min(Math.max(q, 0), 1) * (count - 1));
+		if (rank < zeroCount) {
+			return 0;
+		}
+		long n = zeroCount;
+		for (int i = lo; i <= hi; i ++) {
+			n += bucket(i);
+			if (n > rank) {
+				// Midpoint of (GAMMA ^ (i - 1), GAMMA ^ i] in relative terms
+				return 2 * Math.exp(i * LOG_GAMMA) / (GAMMA + 1);
+			}
+		}
+		return 2 * Math.exp(hi * LOG_GAMMA) / (GAMMA + 1);
+	}
+
+	@Override
+	public MetricSketch clone() {
+		MetricSketch another = new MetricSketch();
+		another.zeroCount = zeroCount;
+		if (buckets != null) {
+			another.buckets = buckets.clone();
+		}
+		another.lo = lo;
+		another.hi = hi;
+		return another;
+	}
+
+	public long[] toArray() {
+		long[] values = new long[hi < lo ? 2 : hi - lo + 3];
+		values[0] = zeroCount;
+		values[1] = hi < lo ? 0 : lo;
+		for (int i = lo; i <= hi; i ++) {
+			values[i - lo + 2] = bucket(i);
+		}
+		return values;
+	}
+
+	// Same as "toString" but without an intermediate array
+	public StringBuilder appendTo(StringBuilder sb) {
+		sb.append(zeroCount).append(',').append(hi < lo ? 0 : lo);
+		for (int i = lo; i <= hi; i ++) {
+			sb.append(',').append(bucket(i));
+		}
+		return sb;
+	}
+
+	@Override
+	public String toString() {
+		return appendTo(new StringBuilder()).toString();
+	}
+}
\ No newline at end of file
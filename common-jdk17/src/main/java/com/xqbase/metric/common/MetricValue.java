@@ -7,6 +7,7 @@ public class MetricValue implements Cloneable {
 
 	private long count;
 	private double sum, max, min, sqr;
+	private MetricSketch sketch = null;
 
 	private void set(long count, double sum, double max, double min, double sqr) {
 		this.count = count;
@@ -22,6 +23,12 @@ public class MetricValue implements Cloneable {
 		set(count, __(sum), __(max), __(min), __(sqr));
 	}
 
+	public MetricValue(long count, double sum, double max,
+			double min, double sqr, MetricSketch sketch) {
+		this(count, sum, max, min, sqr);
+		this.sketch = sketch == null || sketch.isEmpty() ? null : sketch;
+	}
+
 	public MetricValue(double value) {
 		double d = __(value);
 		set(1, d, d, d, d * d);
@@ -37,6 +44,9 @@ public class MetricValue implements Cloneable {
 	public MetricValue clone() {
 		MetricValue another = new MetricValue();
 		another.set(count, sum, max, min, sqr);
+		if (sketch != null) {
+			another.sketch = sketch.clone();
+		}
 		return another;
 	}
 
@@ -46,6 +56,13 @@ public class MetricValue implements Cloneable {
 		max = Math.max(max, value.max);
 		min = Math.min(min, value.min);
 		sqr += value.sqr;
+		if (value.sketch != null) {
+			if (sketch == null) {
+				sketch = value.sketch.clone();
+			} else {
+				sketch.add(value.sketch);
+			}
+		}
 	}
 
 	public long getCount() {
@@ -68,6 +85,20 @@ public class MetricValue implements Cloneable {
 		return sqr;
 	}
 
+	// Not a bean getter, so sketches are kept out of JSON of tag values
+	public MetricSketch sketch() {
+		return sketch;
+	}
+
+	// NaN if the metric has no sketch, see "Metric.enableSketch"
+	public double getQuantile(double q) {
+		if (sketch == null || sketch.isEmpty()) {
+			return Double.NaN;
+		}
+		double d = sketch.getQuantile(q);
+		return d > max ? max : d < min ? min : d;
+	}
+
 	public double getAvg() {
 		return count == 0 ? 0 : sum / count;
 	}
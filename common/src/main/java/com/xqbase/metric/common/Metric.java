@@ -1,21 +1,100 @@
 package com.xqbase.metric.common;
 
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
 
 public class Metric {
-	private static ConcurrentMap<MetricKey, MetricValue>
+	private static ConcurrentMap<MetricKey, MetricAccumulator>
 			map = new ConcurrentHashMap<>();
+	private static Set<String> sketchNames =
+			Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
 
-	private static void put(MetricKey key, double value) {
-		MetricValue current;
-		do {
-			current = map.get(key);
-		} while (current == null ? map.putIfAbsent(key, new MetricValue(value)) != null :
-				!map.replace(key, current, new MetricValue(current, value)));
+	// Also keep quantile sketches for the metric name, which makes "put" slower,
+	// negative values are counted as 0 in sketches
+	public static void enableSketch(String name) {
+		sketchNames.add(name);
+	}
+
+	private static final String OVERFLOW = "metric.tags.overflow";
+	private static final String OTHER = "__other__";
+
+	private static volatile int maxTagCombinations = 0;
+	private static ConcurrentMap<String, Integer>
+			maxTagCombinationsMap = new ConcurrentHashMap<>();
+	private static ConcurrentMap<String, AtomicInteger>
+			combinationsMap = new ConcurrentHashMap<>();
+
+	// Tag combinations beyond the limit are folded into "__other__", 0 means no limit
+	public static void setMaxTagCombinations(int max) {
+		maxTagCombinations = max;
+	}
+
+	public static void setMaxTagCombinations(String name, int max) {
+		maxTagCombinationsMap.put(name, Integer.valueOf(max));
+	}
+
+	// Counts a new tag combination of the name, unless it exceeds the limit
+	private static boolean reserve(String name, boolean force) {
+		AtomicInteger combinations = combinationsMap.get(name);
+		if (combinations == null) {
+			combinations = new AtomicInteger();
+			AtomicInteger current = combinationsMap.putIfAbsent(name, combinations);
+			if (current != null) {
+				combinations = current;
+			}
+		}
+		Integer max_ = maxTagCombinationsMap.get(name);
+		int max = max_ == null ? maxTagCombinations : max_.intValue();
+		if (combinations.incrementAndGet() <= max || max <= 0 || force) {
+			return true;
+		}
+		combinations.decrementAndGet();
+		return false;
+	}
+
+	private static void release(String name) {
+		AtomicInteger combinations = combinationsMap.get(name);
+		if (combinations != null) {
+			combinations.decrementAndGet();
+		}
+	}
+
+	static MetricAccumulator put(MetricKey key, double value) {
+		MetricKey key_ = key;
+		boolean folded = false;
+		while (true) {
+			MetricAccumulator acc = map.get(key_);
+			if (acc == null) {
+				String name = key_.getName();
+				if (!reserve(name, folded)) {
+					if (!name.equals(OVERFLOW)) {
+						put(new MetricKey(OVERFLOW, "name", name), 1);
+					}
+					key_ = key_.fold(OTHER);
+					folded = true;
+					continue;
+				}
+				acc = new MetricAccumulator(sketchNames.contains(name));
+				MetricAccumulator current = map.putIfAbsent(key_, acc);
+				if (current != null) {
+					acc = current;
+					release(name);
+				}
+			}
+			if (acc.add(value)) {
+				return acc;
+			}
+			// Retired by "removeAll", retry with a new one
+			if (map.remove(key_, acc)) {
+				release(key_.getName());
+			}
+		}
 	}
 
 	public static void put(String name, double value, Map<String, String> tagMap) {
@@ -26,14 +105,105 @@ public class Metric {
 		put(new MetricKey(name, tagPairs), value);
 	}
 
-	public static List<MetricEntry> removeAll() {
-		List<MetricEntry> metrics = new ArrayList<>();
-		List<MetricKey> keys = new ArrayList<>(map.keySet());
-		for (MetricKey key : keys) {
-			MetricValue value = map.remove(key);
-			if (value != null) {
-				metrics.add(new MetricEntry(key, value));
+	public static MetricHandle handle(String name, Map<String, String> tagMap) {
+		return new MetricHandle(new MetricKey(name, tagMap));
+	}
+
+	public static MetricHandle handle(String name, String... tagPairs) {
+		return new MetricHandle(new MetricKey(name, tagPairs));
+	}
+
+	private static final String GAUGE_ERRORS = "metric.gauge.errors";
+
+	private static ConcurrentMap<MetricKey, MetricGauge>
+			gauges = new ConcurrentHashMap<>();
+	private static Set<Runnable> samplers =
+			Collections.newSetFromMap(new ConcurrentHashMap<Runnable, Boolean>());
+
+	// Replaces the gauge with the same name and tags
+	public static void registerGauge(String name, MetricGauge gauge,
+			Map<String, String> tagMap) {
+		gauges.put(new MetricKey(name, tagMap), gauge);
+	}
+
+	public static void registerGauge(String name, MetricGauge gauge,
+			String... tagPairs) {
+		gauges.put(new MetricKey(name, tagPairs), gauge);
+	}
+
+	public static void unregisterGauge(String name, Map<String, String> tagMap) {
+		gauges.remove(new MetricKey(name, tagMap));
+	}
+
+	public static void unregisterGauge(String name, String... tagPairs) {
+		gauges.remove(new MetricKey(name, tagPairs));
+	}
+
+	// For samplers which put several metrics, e.g. "ManagementMonitor"
+	public static void registerSampler(Runnable sampler) {
+		samplers.add(sampler);
+	}
+
+	public static void unregisterSampler(Runnable sampler) {
+		samplers.remove(sampler);
+	}
+
+	// Called periodically by "MetricClient", a failed gauge does not stop others
+	public static void sample() {
+		for (Map.Entry<MetricKey, MetricGauge> entry : gauges.entrySet()) {
+			MetricKey key = entry.getKey();
+			double value;
+			try {
+				value = entry.getValue().getValue();
+			} catch (RuntimeException e) {
+				put(new MetricKey(GAUGE_ERRORS, "name", key.getName()), 1);
+				continue;
 			}
+			// Unavailable
+			if (!Double.isNaN(value)) {
+				put(key, value);
+			}
+		}
+		for (Runnable sampler : samplers) {
+			try {
+				sampler.run();
+			} catch (RuntimeException e) {
+				put(new MetricKey(GAUGE_ERRORS, "name",
+						sampler.getClass().getName()), 1);
+			}
+		}
+	}
+
+	// Bank of accumulators written by "put", flipped by "removeAll"
+	static volatile int epoch = 0;
+
+	// Fills "batch" with all metrics accumulated since the last removal
+	public static synchronized void removeAll(MetricBatch batch) {
+		batch.clear();
+		int bank = epoch;
+		epoch = bank + 1;
+		for (Map.Entry<MetricKey, MetricAccumulator> entry : map.entrySet()) {
+			MetricKey key = entry.getKey();
+			MetricAccumulator acc = entry.getValue();
+			int index = batch.open(key, acc.isSketched());
+			acc.drain(bank, batch, index);
+			if (batch.counts[index] == 0) {
+				// Idle for a whole interval, retire and remove it
+				acc.retire(batch, index);
+				if (map.remove(key, acc)) {
+					release(key.getName());
+				}
+				batch.closeIfEmpty();
+			}
+		}
+	}
+
+	public static List<MetricEntry> removeAll() {
+		MetricBatch batch = new MetricBatch();
+		removeAll(batch);
+		List<MetricEntry> metrics = new ArrayList<>(batch.size());
+		for (int i = 0; i < batch.size(); i ++) {
+			metrics.add(new MetricEntry(batch.getKey(i), batch.getValue(i)));
 		}
 		return metrics;
 	}
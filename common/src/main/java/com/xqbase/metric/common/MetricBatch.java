@@ -0,0 +1,115 @@
+package com.xqbase.metric.common;
+
+import java.util.Arrays;
+import java.util.Map;
+
+// Metrics removed by "Metric.removeAll", arrays are reused by the next removal
+public class MetricBatch {
+	private static final MetricKey[] EMPTY_KEYS = new MetricKey[0];
+	private static final long[] EMPTY_LONGS = new long[0];
+	private static final double[] EMPTY_DOUBLES = new double[0];
+	private static final MetricSketch[] EMPTY_SKETCHES = new MetricSketch[0];
+
+	int size = 0;
+	MetricKey[] keys = EMPTY_KEYS;
+	long[] counts = EMPTY_LONGS;
+	double[] sums = EMPTY_DOUBLES, maxs = EMPTY_DOUBLES,
+			mins = EMPTY_DOUBLES, sqrs = EMPTY_DOUBLES;
+	MetricSketch[] sketches = EMPTY_SKETCHES;
+	private boolean[] sketched = new boolean[0];
+
+	// Appends an empty slot for "key"
+	int open(MetricKey key, boolean sketch) {
+		if (size == keys.length) {
+			int capacity = Math.max(size * 2, 16);
+			keys = Arrays.copyOf(keys, capacity);
+			counts = Arrays.copyOf(counts, capacity);
+			sums = Arrays.copyOf(sums, capacity);
+			maxs = Arrays.copyOf(maxs, capacity);
+			mins = Arrays.copyOf(mins, capacity);
+			sqrs = Arrays.copyOf(sqrs, capacity);
+			sketches = Arrays.copyOf(sketches, capacity);
+			sketched = Arrays.copyOf(sketched, capacity);
+		}
+		int i = size;
+		keys[i] = key;
+		counts[i] = 0;
+		sums[i] = 0;
+		maxs[i] = Double.NEGATIVE_INFINITY;
+		mins[i] = Double.POSITIVE_INFINITY;
+		sqrs[i] = 0;
+		sketched[i] = sketch;
+		if (sketch) {
+			if (sketches[i] == null) {
+				sketches[i] = new MetricSketch();
+			} else {
+				sketches[i].clear();
+			}
+		}
+		size ++;
+		return i;
+	}
+
+	// Drops the last slot if nothing is accumulated into it
+	void closeIfEmpty() {
+		if (size > 0 && counts[size - 1] == 0) {
+			size --;
+			keys[size] = null;
+		}
+	}
+
+	public void clear() {
+		Arrays.fill(keys, 0, size, null);
+		size = 0;
+	}
+
+	public int size() {
+		return size;
+	}
+
+	public boolean isEmpty() {
+		return size == 0;
+	}
+
+	public MetricKey getKey(int i) {
+		return keys[i];
+	}
+
+	public String getName(int i) {
+		return keys[i].getName();
+	}
+
+	public Map<String, String> getTagMap(int i) {
+		return keys[i].getTagMap();
+	}
+
+	public long getCount(int i) {
+		return counts[i];
+	}
+
+	public double getSum(int i) {
+		return sums[i];
+	}
+
+	public double getMax(int i) {
+		return maxs[i];
+	}
+
+	public double getMin(int i) {
+		return mins[i];
+	}
+
+	public double getSqr(int i) {
+		return sqrs[i];
+	}
+
+	public MetricSketch getSketch(int i) {
+		return sketched[i] && !sketches[i].isEmpty() ? sketches[i] : null;
+	}
+
+	public MetricValue getValue(int i) {
+		MetricSketch sketch = getSketch(i);
+		return new MetricValue(counts[i], sums[i], maxs[i], mins[i], sqrs[i],
+				sketch == null ? null : sketch.clone());
+	}
+}
\ No newline at end of file
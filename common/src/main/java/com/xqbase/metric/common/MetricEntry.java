@@ -38,4 +38,8 @@ public class MetricEntry {
 	public double getSqr() {
 		return value.getSqr();
 	}
+
+	public MetricSketch getSketch() {
+		return value.sketch();
+	}
 }
\ No newline at end of file
@@ -0,0 +1,6 @@
+package com.xqbase.metric.common;
+
+// Sampled periodically after registered by "Metric.registerGauge"
+public interface MetricGauge {
+	public double getValue();
+}
\ No newline at end of file
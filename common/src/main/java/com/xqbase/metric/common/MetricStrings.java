@@ -0,0 +1,53 @@
+package com.xqbase.metric.common;
+
+import java.util.Arrays;
+
+// Bounded dictionary of strings decoded from bytes, so names and tags repeated in rows
+// share one instance. A new string replaces the one in its slot, and entries are
+// immutable, so the dictionary is shared by threads without locking.
+public class MetricStrings {
+	private static class Entry {
+		final byte[] key;
+		final int hash;
+		final String value;
+
+		Entry(byte[] key, int hash, String value) {
+			this.key = key;
+			this.hash = hash;
+			this.value = value;
+		}
+	}
+
+	private Entry[] entries;
+	private int mask;
+
+	// "capacity" is rounded up to a power of 2
+	public MetricStrings(int capacity) {
+		int size = Integer.highestOneBit(Math.max(capacity - 1, 1)) << 1;
+		entries = new Entry[size];
+		mask = size - 1;
+	}
+
+	private int index(int hash) {
+		return (hash ^ hash >>> 16) & mask;
+	}
+
+	// Returns null if not cached, "hash" is computed by the caller over the same bytes
+	String get(byte[] b, int off, int len, int hash) {
+		Entry entry = entries[index(hash)];
+		if (entry == null || entry.hash != hash || entry.key.length != len) {
+			return null;
+		}
+		byte[] key = entry.key;
+		for (int i = 0; i < len; i ++) {
+			if (key[i] != b[off + i]) {
+				return null;
+			}
+		}
+		return entry.value;
+	}
+
+	void put(byte[] b, int off, int len, int hash, String value) {
+		entries[index(hash)] = new Entry(Arrays.copyOfRange(b, off, off + len), hash, value);
+	}
+}
\ No newline at end of file
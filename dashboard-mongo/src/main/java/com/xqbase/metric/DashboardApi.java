@@ -8,12 +8,13 @@ import java.util.Comparator;
 import java.util.Enumeration;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.Objects;
 import java.util.Properties;
 import java.util.Set;
 import java.util.TreeSet;
 import java.util.function.Function;
 import java.util.function.ToDoubleFunction;
-import java.util.stream.DoubleStream;
+import java.util.stream.Stream;
 
 import javax.servlet.ServletException;
 import javax.servlet.http.HttpServlet;
@@ -27,6 +28,7 @@ import com.mongodb.MongoClient;
 import com.mongodb.MongoClientURI;
 import com.mongodb.MongoException;
 import com.mongodb.client.MongoDatabase;
+import com.xqbase.metric.common.MetricSketch;
 import com.xqbase.metric.common.MetricValue;
 import com.xqbase.metric.util.CollectionsEx;
 import com.xqbase.util.Conf;
@@ -107,6 +109,9 @@ public class DashboardApi extends HttpServlet {
 		methodMap.put("min", MetricValue::getMin);
 		methodMap.put("avg", MetricValue::getAvg);
 		methodMap.put("std", MetricValue::getStd);
+		methodMap.put("p50", value -> value.getQuantile(0.5));
+		methodMap.put("p90", value -> value.getQuantile(0.9));
+		methodMap.put("p99", value -> value.getQuantile(0.99));
 		methodMap.put("names", NAMES_METHOD);
 		methodMap.put("tags", TAGS_METHOD);
 	}
@@ -144,6 +149,11 @@ public class DashboardApi extends HttpServlet {
 		return value instanceof String ? (String) value : "_";
 	}
 
+	private static MetricSketch getSketch(Document row) {
+		Object value = row.get("sketch");
+		return value instanceof String ? MetricSketch.parse((String) value) : null;
+	}
+
 	private static Document getDocument(Document row, String key) {
 		Object value = row.get(key);
 		return value instanceof Document ? (Document) value : new Document();
@@ -282,7 +292,8 @@ public class DashboardApi extends HttpServlet {
 				GroupKey key = new GroupKey(groupBy.apply(row), index);
 				MetricValue newValue = new MetricValue(getLong(row, "count"),
 						getDouble(row, "sum"), getDouble(row, "max"),
-						getDouble(row, "min"), getDouble(row, "sqr"));
+						getDouble(row, "min"), getDouble(row, "sqr"),
+						getSketch(row));
 				MetricValue value = result.get(key);
 				if (value == null) {
 					result.put(key, newValue);
@@ -295,24 +306,27 @@ public class DashboardApi extends HttpServlet {
 			return;
 		}
 		// Generate Data
-		Map<String, double[]> data = new HashMap<>();
+		Map<String, Double[]> data = new HashMap<>();
 		result.forEach((key, value) -> {
 			/* Already Filtered during Grouping
 			if (key.index < 0 || key.index >= length) {
 				continue;
 			} */
-			double[] values = data.get(key.tag);
+			Double[] values = data.get(key.tag);
 			if (values == null) {
-				values = new double[length];
-				Arrays.fill(values, 0);
+				values = new Double[length];
+				Arrays.fill(values, Double.valueOf(0));
 				data.put(key.tag, values);
 			}
 			double d = method.applyAsDouble(value);
-			values[key.index] = Double.isFinite(d) ? d : 0;
+			// Quantiles without a sketch are null, which is a gap in the chart rather than 0
+			values[key.index] = Double.isNaN(d) ? null : Double.valueOf(Double.isFinite(d) ? d : 0);
 		});
 		if (maxTagValues > 0 && data.size() > maxTagValues) {
 			outputJson(req, resp, CollectionsEx.toMap(CollectionsEx.max(data.entrySet(),
-					Comparator.comparingDouble(entry -> DoubleStream.of((double[]) entry.getValue()).sum()),
+					Comparator.comparingDouble(entry ->
+					Stream.of((Double[]) entry.getValue()).filter(Objects::nonNull).
+					mapToDouble(Double::doubleValue).sum()),
 					maxTagValues)));
 		} else {
 			outputJson(req, resp, data);
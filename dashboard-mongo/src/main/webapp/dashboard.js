@@ -1,5 +1,5 @@
 var MINUTE = 60000;
-var METHOD_NAME = ["sum", "count", "avg", "max", "min", "std"];
+var METHOD_NAME = ["sum", "count", "avg", "max", "min", "std", "p50", "p90", "p99"];
 var METHOD_COMPARATOR = [
 	function(tag1, tag2) {
 		return tag2.sum - tag1.sum;
@@ -23,6 +23,16 @@ var METHOD_COMPARATOR = [
 		base2 = base2 < 0 ? 0 : Math.sqrt(base2) / tag2.count;
 		return base2 - base1;
 	},
+	// Quantiles are not kept in tags, so sort by count
+	function(tag1, tag2) {
+		return tag2.count - tag1.count;
+	},
+	function(tag1, tag2) {
+		return tag2.count - tag1.count;
+	},
+	function(tag1, tag2) {
+		return tag2.count - tag1.count;
+	},
 ];
 var INTERVAL = [1, 5, 15, 60, 360, 1440];
 var INTERVAL_TEXT = ["1 Minute", "5 Minutes", "15 Minutes", "1 Hour", "6 Hours", "1 Day"];
@@ -4,17 +4,19 @@ import java.io.IOException;
 import java.io.PrintWriter;
 import java.lang.reflect.Field;
 import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
 import java.util.Arrays;
 import java.util.Comparator;
 import java.util.Enumeration;
 import java.util.HashMap;
 import java.util.Iterator;
 import java.util.Map;
+import java.util.Objects;
 import java.util.Set;
 import java.util.TreeSet;
 import java.util.function.Function;
 import java.util.function.ToDoubleFunction;
-import java.util.stream.DoubleStream;
+import java.util.stream.Stream;
 
 import javax.servlet.ServletException;
 import javax.servlet.http.HttpServlet;
@@ -27,6 +29,7 @@ import org.h2.mvstore.MVStore;
 import org.h2.store.fs.FilePath;
 import org.json.JSONObject;
 
+import com.xqbase.metric.common.MetricParser;
 import com.xqbase.metric.common.MetricValue;
 import com.xqbase.metric.util.CollectionsEx;
 import com.xqbase.util.Conf;
@@ -79,8 +82,7 @@ public class DashboardApi extends HttpServlet {
 		}
 	}
 
-	private static double __(String s) {
-		double d = Numbers.parseDouble(s);
+	private static double __(double d) {
 		return Double.isFinite(d) ? d : 0;
 	}
 
@@ -120,6 +122,9 @@ public class DashboardApi extends HttpServlet {
 		methodMap.put("min", MetricValue::getMin);
 		methodMap.put("avg", MetricValue::getAvg);
 		methodMap.put("std", MetricValue::getStd);
+		methodMap.put("p50", value -> value.getQuantile(0.5));
+		methodMap.put("p90", value -> value.getQuantile(0.9));
+		methodMap.put("p99", value -> value.getQuantile(0.99));
 		methodMap.put("names", NAMES_METHOD);
 		methodMap.put("tags", TAGS_METHOD);
 	}
@@ -247,6 +252,7 @@ public class DashboardApi extends HttpServlet {
 				it = metricTable.keyIterator(Long.valueOf((long) begin << 32));
 				to = ((long) (end + 1) << 32) - 1;
 			}
+			MetricParser parser = new MetricParser();
 			while (it.hasNext()) {
 				Number time = it.next();
 				if (time.longValue() > to) {
@@ -264,22 +270,12 @@ public class DashboardApi extends HttpServlet {
 					Log.w("Unable to get key " + time + " from table " + metricName);
 					continue;
 				}
-				for (String line : s.split("\n")) {
-					String[] paths;
+				byte[] b = s.getBytes(StandardCharsets.UTF_8);
+				parser.reset(b, 0, b.length);
+				while (parser.next()) {
 					Map<String, String> tags = new HashMap<>();
-					int i = line.indexOf('?');
-					if (i < 0) {
-						paths = line.split("/");
-					} else {
-						paths = line.substring(0, i).split("/");
-						String q = line.substring(i + 1);
-						for (String tag : q.split("&")) {
-							i = tag.indexOf('=');
-							if (i > 0) {
-								tags.put(Strings.decodeUrl(tag.substring(0, i)),
-										Strings.decodeUrl(tag.substring(i + 1)));
-							}
-						}
+					for (int i = 0; i < parser.getTagCount(); i ++) {
+						tags.put(parser.getTagKey(i), parser.getTagValue(i));
 					}
 					// Query Tags
 					boolean skip = false;
@@ -290,13 +286,15 @@ public class DashboardApi extends HttpServlet {
 							break;
 						}
 					}
-					if (skip || paths.length <= 4) {
+					if (skip || parser.getFieldCount() <= 4) {
 						continue;
 					}
 					// Group Tags
 					GroupKey key = new GroupKey(groupBy.apply(tags), index);
-					MetricValue newValue = new MetricValue(Numbers.parseLong(paths[0]),
-							__(paths[1]), __(paths[2]), __(paths[3]), __(paths[4]));
+					MetricValue newValue = new MetricValue(parser.getLong(0, 0),
+							__(parser.getDouble(1)), __(parser.getDouble(2)),
+							__(parser.getDouble(3)), __(parser.getDouble(4)),
+							parser.getSketch(5));
 					MetricValue value = result.get(key);
 					if (value == null) {
 						result.put(key, newValue);
@@ -307,25 +305,27 @@ public class DashboardApi extends HttpServlet {
 			}
 		}
 		// Generate Data
-		Map<String, double[]> data = new HashMap<>();
+		Map<String, Double[]> data = new HashMap<>();
 		result.forEach((key, value) -> {
 			/* Already Filtered during Grouping
 			if (key.index < 0 || key.index >= length) {
 				continue;
 			} */
-			double[] values = data.get(key.tag);
+			Double[] values = data.get(key.tag);
 			if (values == null) {
-				values = new double[length];
-				Arrays.fill(values, 0);
+				values = new Double[length];
+				Arrays.fill(values, Double.valueOf(0));
 				data.put(key.tag, values);
 			}
 			double d = method.applyAsDouble(value);
-			values[key.index] = Double.isFinite(d) ? d : 0;
+			// Quantiles without a sketch are null, which is a gap in the chart rather than 0
+			values[key.index] = Double.isNaN(d) ? null : Double.valueOf(Double.isFinite(d) ? d : 0);
 		});
 		if (maxTagValues > 0 && data.size() > maxTagValues) {
 			outputJson(req, resp, CollectionsEx.toMap(CollectionsEx.max(data.entrySet(),
 					Comparator.comparingDouble(entry ->
-					DoubleStream.of((double[]) entry.getValue()).sum()),
+					Stream.of((Double[]) entry.getValue()).filter(Objects::nonNull).
+					mapToDouble(Double::doubleValue).sum()),
 					maxTagValues)));
 		} else {
 			outputJson(req, resp, data);
@@ -2,6 +2,7 @@ package com.xqbase.metric;
 
 import java.io.IOException;
 import java.io.PrintWriter;
+import java.nio.charset.StandardCharsets;
 import java.sql.Connection;
 import java.sql.Driver;
 import java.sql.PreparedStatement;
@@ -12,12 +13,13 @@ import java.util.Comparator;
 import java.util.Enumeration;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.Objects;
 import java.util.Properties;
 import java.util.Set;
 import java.util.TreeSet;
 import java.util.function.Function;
 import java.util.function.ToDoubleFunction;
-import java.util.stream.DoubleStream;
+import java.util.stream.Stream;
 
 import javax.servlet.ServletException;
 import javax.servlet.http.HttpServlet;
@@ -26,6 +28,7 @@ import javax.servlet.http.HttpServletResponse;
 
 import org.json.JSONObject;
 
+import com.xqbase.metric.common.MetricParser;
 import com.xqbase.metric.common.MetricValue;
 import com.xqbase.metric.util.CollectionsEx;
 import com.xqbase.util.Conf;
@@ -95,8 +98,7 @@ public class DashboardApi extends HttpServlet {
 		}
 	}
 
-	private static double __(String s) {
-		double d = Numbers.parseDouble(s);
+	private static double __(double d) {
 		return Double.isFinite(d) ? d : 0;
 	}
 
@@ -118,6 +120,9 @@ public class DashboardApi extends HttpServlet {
 		methodMap.put("min", MetricValue::getMin);
 		methodMap.put("avg", MetricValue::getAvg);
 		methodMap.put("std", MetricValue::getStd);
+		methodMap.put("p50", value -> value.getQuantile(0.5));
+		methodMap.put("p90", value -> value.getQuantile(0.9));
+		methodMap.put("p99", value -> value.getQuantile(0.99));
 		methodMap.put("names", NAMES_METHOD);
 		methodMap.put("tags", TAGS_METHOD);
 	}
@@ -263,6 +268,7 @@ public class DashboardApi extends HttpServlet {
 		};
 		// Query Time Range by SQL, Query and Group Tags by Java
 		Map<GroupKey, MetricValue> result = new HashMap<>();
+		MetricParser parser = new MetricParser();
 		ConsumerEx<ResultSet, SQLException> consumer = rs -> {
 			int index = (rs.getInt("time") - begin) / interval;
 			if (index < 0 || index >= length) {
@@ -271,22 +277,12 @@ public class DashboardApi extends HttpServlet {
 				return;
 			}
 			String s = rs.getString("metrics");
-			for (String line : s.split("\n")) {
-				String[] paths;
+			byte[] b = s.getBytes(StandardCharsets.UTF_8);
+			parser.reset(b, 0, b.length);
+			while (parser.next()) {
 				Map<String, String> tags = new HashMap<>();
-				int i = line.indexOf('?');
-				if (i < 0) {
-					paths = line.split("/");
-				} else {
-					paths = line.substring(0, i).split("/");
-					String q = line.substring(i + 1);
-					for (String tag : q.split("&")) {
-						i = tag.indexOf('=');
-						if (i > 0) {
-							tags.put(Strings.decodeUrl(tag.substring(0, i)),
-									Strings.decodeUrl(tag.substring(i + 1)));
-						}
-					}
+				for (int i = 0; i < parser.getTagCount(); i ++) {
+					tags.put(parser.getTagKey(i), parser.getTagValue(i));
 				}
 				// Query Tags
 				boolean skip = false;
@@ -297,13 +293,15 @@ public class DashboardApi extends HttpServlet {
 						break;
 					}
 				}
-				if (skip || paths.length <= 4) {
+				if (skip || parser.getFieldCount() <= 4) {
 					continue;
 				}
 				// Group Tags
 				GroupKey key = new GroupKey(groupBy.apply(tags), index);
-				MetricValue newValue = new MetricValue(Numbers.parseLong(paths[0]),
-						__(paths[1]), __(paths[2]), __(paths[3]), __(paths[4]));
+				MetricValue newValue = new MetricValue(parser.getLong(0, 0),
+						__(parser.getDouble(1)), __(parser.getDouble(2)),
+						__(parser.getDouble(3)), __(parser.getDouble(4)),
+						parser.getSketch(5));
 				MetricValue value = result.get(key);
 				if (value == null) {
 					result.put(key, newValue);
@@ -340,25 +338,27 @@ public class DashboardApi extends HttpServlet {
 			return;
 		}
 		// Generate Data
-		Map<String, double[]> data = new HashMap<>();
+		Map<String, Double[]> data = new HashMap<>();
 		result.forEach((key, value) -> {
 			/* Already Filtered during Grouping
 			if (key.index < 0 || key.index >= length) {
 				continue;
 			} */
-			double[] values = data.get(key.tag);
+			Double[] values = data.get(key.tag);
 			if (values == null) {
-				values = new double[length];
-				Arrays.fill(values, 0);
+				values = new Double[length];
+				Arrays.fill(values, Double.valueOf(0));
 				data.put(key.tag, values);
 			}
 			double d = method.applyAsDouble(value);
-			values[key.index] = Double.isFinite(d) ? d : 0;
+			// Quantiles without a sketch are null, which is a gap in the chart rather than 0
+			values[key.index] = Double.isNaN(d) ? null : Double.valueOf(Double.isFinite(d) ? d : 0);
 		});
 		if (maxTagValues > 0 && data.size() > maxTagValues) {
 			outputJson(req, resp, CollectionsEx.toMap(CollectionsEx.max(data.entrySet(),
 					Comparator.comparingDouble(entry ->
-					DoubleStream.of((double[]) entry.getValue()).sum()),
+					Stream.of((Double[]) entry.getValue()).filter(Objects::nonNull).
+					mapToDouble(Double::doubleValue).sum()),
 					maxTagValues)));
 		} else {
 			outputJson(req, resp, data);
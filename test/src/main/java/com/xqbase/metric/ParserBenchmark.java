@@ -0,0 +1,140 @@
+package com.xqbase.metric;
+
+import java.io.UnsupportedEncodingException;
+import java.lang.management.ManagementFactory;
+import java.net.URLDecoder;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+import com.xqbase.metric.common.MetricParser;
+import com.xqbase.metric.common.MetricValue;
+
+// Parses stored rows "<count>/<sum>/<max>/<min>/<sqr>?<tag>=<value>[&...]" with
+// split/substring/decode/parseDouble as the collectors did, and with "MetricParser"
+public class ParserBenchmark {
+	private static final int ROWS = 10_000;
+	private static final int ROUNDS = 200;
+
+	private static com.sun.management.ThreadMXBean threads =
+			(com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+
+	private static long allocated() {
+		return threads.getThreadAllocatedBytes(Thread.currentThread().getId());
+	}
+
+	private static double __(String s) {
+		try {
+			return Double.parseDouble(s);
+		} catch (NumberFormatException e) {
+			return 0;
+		}
+	}
+
+	private static double __(double d) {
+		return Double.isNaN(d) ? 0 : d;
+	}
+
+	private static String decode(String s) throws UnsupportedEncodingException {
+		return URLDecoder.decode(s, "UTF-8");
+	}
+
+	private static byte[] generate() throws UnsupportedEncodingException {
+		Random r = new Random(0);
+		StringBuilder sb = new StringBuilder();
+		for (int i = 0; i < ROWS; i ++) {
+			double sum = r.nextDouble() * 1000;
+			sb.append(r.nextInt(100) + 1).append('/').append(sum).append('/').
+					append(sum / 2).append('/').append(r.nextInt(10)).append('/').
+					append(sum * sum).append("?host=server-").append(r.nextInt(16)).
+					append("&path=").append(URLEncoder.encode("/api/v" +
+					r.nextInt(3) + "/item list", "UTF-8")).
+					append("&status=").append(200 + r.nextInt(5)).append('\n');
+		}
+		return sb.toString().getBytes(StandardCharsets.UTF_8);
+	}
+
+	private static double legacy(byte[] b) throws UnsupportedEncodingException {
+		double total = 0;
+		for (String line : new String(b, StandardCharsets.UTF_8).split("\n")) {
+			String[] paths;
+			Map<String, String> tags = new HashMap<>();
+			int i = line.indexOf('?');
+			if (i < 0) {
+				paths = line.split("/");
+			} else {
+				paths = line.substring(0, i).split("/");
+				String q = line.substring(i + 1);
+				for (String tag : q.split("&")) {
+					i = tag.indexOf('=');
+					if (i > 0) {
+						tags.put(decode(tag.substring(0, i)), decode(tag.substring(i + 1)));
+					}
+				}
+			}
+			if (paths.length <= 4) {
+				continue;
+			}
+			MetricValue value = new MetricValue(Long.parseLong(paths[0]),
+					__(paths[1]), __(paths[2]), __(paths[3]), __(paths[4]), null);
+			total += value.getSum() + tags.size();
+		}
+		return total;
+	}
+
+	private static double parser(byte[] b, MetricParser parser) {
+		double total = 0;
+		parser.reset(b, 0, b.length);
+		while (parser.next()) {
+			Map<String, String> tags = new HashMap<>();
+			for (int i = 0; i < parser.getTagCount(); i ++) {
+				tags.put(parser.getTagKey(i), parser.getTagValue(i));
+			}
+			if (parser.getFieldCount() <= 4) {
+				continue;
+			}
+			MetricValue value = new MetricValue(parser.getLong(0, 0),
+					__(parser.getDouble(1)), __(parser.getDouble(2)),
+					__(parser.getDouble(3)), __(parser.getDouble(4)),
+					parser.getSketch(5));
+			total += value.getSum() + tags.size();
+		}
+		return total;
+	}
+
+	private static void report(String name, long nanos, long bytes) {
+		long rows = (long) ROWS * ROUNDS;
+		System.out.printf("%-8s %8.1f ns/row %8.1f bytes/row%n",
+				name, (double) nanos / rows, (double) bytes / rows);
+	}
+
+	public static void main(String[] args) throws Exception {
+		byte[] b = generate();
+		MetricParser parser = new MetricParser();
+		if (legacy(b) != parser(b, parser)) {
+			throw new IllegalStateException("Results differ");
+		}
+		double sink = 0;
+		for (int round = 0; round < 3; round ++) {
+			// Warm up both before measuring
+			for (int i = 0; i < ROUNDS / 4; i ++) {
+				sink += legacy(b) + parser(b, parser);
+			}
+			long t = System.nanoTime();
+			long bytes = allocated();
+			for (int i = 0; i < ROUNDS; i ++) {
+				sink += legacy(b);
+			}
+			report("legacy", System.nanoTime() - t, allocated() - bytes);
+			t = System.nanoTime();
+			bytes = allocated();
+			for (int i = 0; i < ROUNDS; i ++) {
+				sink += parser(b, parser);
+			}
+			report("parser", System.nanoTime() - t, allocated() - bytes);
+		}
+		System.out.println("(" + sink + ")");
+	}
+}
\ No newline at end of file
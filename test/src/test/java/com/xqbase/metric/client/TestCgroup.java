@@ -0,0 +1,103 @@
+package com.xqbase.metric.client;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class TestCgroup {
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	private static void write(File dir, String file, String s) throws IOException {
+		Files.write(new File(dir, file).toPath(), s.getBytes(StandardCharsets.US_ASCII));
+	}
+
+	private static long[] read(CgroupReader cgroup) {
+		long[] values = new long[CgroupReader.VALUES];
+		cgroup.read(values);
+		return values;
+	}
+
+	@Test
+	public void testV2() throws IOException {
+		File dir = folder.newFolder();
+		write(dir, "cpu.max", "150000 100000\n");
+		write(dir, "cpu.stat", "usage_usec 2000\nuser_usec 1500\nsystem_usec 500\n" +
+				"nr_periods 30\nnr_throttled 3\nthrottled_usec 400\n");
+		write(dir, "memory.max", "1073741824\n");
+		write(dir, "memory.current", "536870912\n");
+		// Longer than the initial buffer, with the key at the end
+		StringBuilder sb = new StringBuilder();
+		for (int i = 0; i < 500; i ++) {
+			sb.append("anon_").append(i).append(' ').append(i).append('\n');
+		}
+		sb.append("inactive_file 1048576\n");
+		write(dir, "memory.stat", sb.toString());
+		write(dir, "memory.events", "low 0\nhigh 0\nmax 5\noom 2\noom_kill 1\n");
+		String path = dir.getPath();
+		long[] values = read(new CgroupReader(true, path, path, path));
+		assertEquals(2000000, values[CgroupReader.CPU_USAGE]);
+		assertEquals(150000, values[CgroupReader.CPU_QUOTA]);
+		assertEquals(100000, values[CgroupReader.CPU_PERIOD]);
+		assertEquals(30, values[CgroupReader.CPU_PERIODS]);
+		assertEquals(3, values[CgroupReader.CPU_THROTTLED]);
+		assertEquals(400000, values[CgroupReader.CPU_THROTTLED_TIME]);
+		assertEquals(1073741824, values[CgroupReader.MEMORY_LIMIT]);
+		assertEquals(536870912, values[CgroupReader.MEMORY_USAGE]);
+		assertEquals(1048576, values[CgroupReader.MEMORY_INACTIVE_FILE]);
+		assertEquals(1, values[CgroupReader.OOM_KILLS]);
+
+		// Unlimited, and files missing when controllers are not enabled
+		write(dir, "cpu.max", "max 100000\n");
+		write(dir, "memory.max", "max\n");
+		new File(dir, "memory.events").delete();
+		values = read(new CgroupReader(true, path, path, path));
+		assertEquals(-1, values[CgroupReader.CPU_QUOTA]);
+		assertEquals(100000, values[CgroupReader.CPU_PERIOD]);
+		assertEquals(-1, values[CgroupReader.MEMORY_LIMIT]);
+		assertEquals(-1, values[CgroupReader.OOM_KILLS]);
+	}
+
+	@Test
+	public void testV1() throws IOException {
+		File cpu = folder.newFolder();
+		File cpuacct = folder.newFolder();
+		File memory = folder.newFolder();
+		write(cpu, "cpu.cfs_quota_us", "-1\n");
+		write(cpu, "cpu.cfs_period_us", "100000\n");
+		write(cpu, "cpu.stat", "nr_periods 10\nnr_throttled 2\nthrottled_time 5000\n");
+		write(cpuacct, "cpuacct.usage", "123456789\n");
+		// No limit, a huge number rounded to pages
+		write(memory, "memory.limit_in_bytes", "9223372036854771712\n");
+		write(memory, "memory.usage_in_bytes", "4096\n");
+		write(memory, "memory.stat", "cache 8192\ninactive_file 1024\n" +
+				"total_cache 8192\ntotal_inactive_file 2048\n");
+		write(memory, "memory.oom_control", "oom_kill_disable 0\nunder_oom 0\noom_kill 3\n");
+		long[] values = read(new CgroupReader(false,
+				cpu.getPath(), cpuacct.getPath(), memory.getPath()));
+		assertEquals(123456789, values[CgroupReader.CPU_USAGE]);
+		assertEquals(-1, values[CgroupReader.CPU_QUOTA]);
+		assertEquals(100000, values[CgroupReader.CPU_PERIOD]);
+		assertEquals(10, values[CgroupReader.CPU_PERIODS]);
+		assertEquals(2, values[CgroupReader.CPU_THROTTLED]);
+		assertEquals(5000, values[CgroupReader.CPU_THROTTLED_TIME]);
+		assertEquals(-1, values[CgroupReader.MEMORY_LIMIT]);
+		assertEquals(4096, values[CgroupReader.MEMORY_USAGE]);
+		assertEquals(2048, values[CgroupReader.MEMORY_INACTIVE_FILE]);
+		assertEquals(3, values[CgroupReader.OOM_KILLS]);
+
+		// Controllers in the root cgroup are not read
+		values = read(new CgroupReader(false, null, null, memory.getPath()));
+		assertEquals(-1, values[CgroupReader.CPU_USAGE]);
+		assertEquals(-1, values[CgroupReader.CPU_PERIOD]);
+		assertEquals(-1, values[CgroupReader.CPU_THROTTLED]);
+		assertEquals(4096, values[CgroupReader.MEMORY_USAGE]);
+	}
+}
\ No newline at end of file
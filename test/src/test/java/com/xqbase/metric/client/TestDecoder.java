@@ -0,0 +1,148 @@
+package com.xqbase.metric.client;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.Test;
+
+import com.xqbase.metric.common.Metric;
+import com.xqbase.metric.common.MetricBatch;
+import com.xqbase.metric.common.MetricSketch;
+
+public class TestDecoder {
+	private static final String NAME = "test.decoder";
+	private static final String SKETCHED = "test.decoder.sketched";
+
+	private static MetricBatch batch() {
+		Metric.enableSketch(SKETCHED);
+		// Drop metrics of other tests
+		Metric.removeAll(new MetricBatch());
+		Random random = new Random(0);
+		for (int i = 0; i < 100; i ++) {
+			Metric.put(NAME, random.nextInt(1000) - 500,
+					"host", "server-" + i % 4, "path", "/中文 " + i % 3);
+			Metric.put(SKETCHED, random.nextDouble() * 1e-3, "emoji", "😀");
+		}
+		Metric.put(NAME, Double.POSITIVE_INFINITY, "r", "+Infinity");
+		Metric.put(NAME, Double.NEGATIVE_INFINITY, "r", "-Infinity");
+		MetricBatch batch = new MetricBatch();
+		Metric.removeAll(batch);
+		return batch;
+	}
+
+	private static byte[] encode(MetricBatch batch) {
+		MetricEncoder encoder = new MetricEncoder(true);
+		encoder.reset();
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		for (int i = 0; i < batch.size(); i ++) {
+			int len = encoder.encode(batch, i, 12345678);
+			out.write(encoder.array(), 0, len);
+		}
+		return out.toByteArray();
+	}
+
+	// Decodes all rows, any failure other than "IOException" is a bug
+	private static int decode(byte[] b, int len) throws IOException {
+		MetricDecoder decoder = new MetricDecoder(b, 0, len);
+		int rows = 0;
+		while (decoder.next()) {
+			rows ++;
+		}
+		return rows;
+	}
+
+	@Test
+	public void testRoundTrip() throws IOException {
+		MetricBatch batch = batch();
+		byte[] b = encode(batch);
+		assertTrue(MetricDecoder.isBinary(b, 0, b.length));
+		MetricDecoder decoder = new MetricDecoder(b, 0, b.length);
+		for (int i = 0; i < batch.size(); i ++) {
+			assertTrue(decoder.next());
+			assertEquals(batch.getName(i), decoder.getName());
+			assertEquals(12345678, decoder.getTime());
+			assertEquals(batch.getCount(i), decoder.getCount());
+			assertEquals(batch.getSum(i), decoder.getSum(), 0);
+			assertEquals(batch.getMax(i), decoder.getMax(), 0);
+			assertEquals(batch.getMin(i), decoder.getMin(), 0);
+			assertEquals(batch.getSqr(i), decoder.getSqr(), 0);
+			assertEquals(batch.getTagMap(i), decoder.getTagMap());
+			MetricSketch sketch = batch.getSketch(i);
+			if (sketch == null) {
+				assertNull(decoder.getSketch());
+			} else {
+				// Values below 1 have negative bucket indexes
+				assertArrayEquals(sketch.toArray(), decoder.getSketch().toArray());
+			}
+		}
+		assertFalse(decoder.next());
+	}
+
+	@Test
+	public void testText() {
+		byte[] b = "test/1/2/3/4/5/6".getBytes();
+		assertFalse(MetricDecoder.isBinary(b, 0, b.length));
+		assertFalse(MetricDecoder.isBinary(b, 0, 0));
+	}
+
+	private static void assertMalformed(byte[] b) {
+		try {
+			decode(b, b.length);
+			fail();
+		} catch (IOException e) {
+			// Expected
+		}
+	}
+
+	@Test
+	public void testMalformed() {
+		int magic = MetricDecoder.MAGIC;
+		// Truncated varint
+		assertMalformed(new byte[] {(byte) magic, (byte) 0x80});
+		// Unknown string
+		assertMalformed(new byte[] {(byte) magic, 5});
+		// Length longer than the packet
+		assertMalformed(new byte[] {(byte) magic, 0, 100, 'a'});
+		// Negative length in a 10-byte varint
+		byte[] b = new byte[12];
+		b[0] = (byte) magic;
+		b[1] = 0;
+		Arrays.fill(b, 2, 11, (byte) 0xFF);
+		b[11] = 1;
+		assertMalformed(b);
+		// Varint longer than 64 bits
+		b = new byte[13];
+		b[0] = (byte) magic;
+		Arrays.fill(b, 1, 13, (byte) 0xFF);
+		assertMalformed(b);
+	}
+
+	@Test
+	public void testFuzz() {
+		byte[] b = encode(batch());
+		Random random = new Random(0);
+		byte[] b_ = new byte[b.length];
+		for (int i = 0; i < 20000; i ++) {
+			System.arraycopy(b, 0, b_, 0, b.length);
+			int len = random.nextInt(b.length) + 1;
+			int mutations = random.nextInt(8);
+			for (int j = 0; j < mutations; j ++) {
+				b_[random.nextInt(len)] = (byte) random.nextInt(256);
+			}
+			try {
+				decode(b_, len);
+			} catch (IOException e) {
+				// Expected for most mutations
+			}
+		}
+	}
+}
\ No newline at end of file
@@ -0,0 +1,102 @@
+package com.xqbase.metric.client;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.Test;
+
+import com.xqbase.metric.common.Metric;
+import com.xqbase.metric.common.MetricBatch;
+import com.xqbase.metric.common.MetricParser;
+import com.xqbase.metric.common.MetricSketch;
+
+public class TestEncoder {
+	private static final String NAME = "test.encoder/a b";
+	private static final String SKETCHED = "test.encoder.sketched";
+
+	private static MetricBatch batch() {
+		Metric.enableSketch(SKETCHED);
+		// Drop metrics of other tests
+		Metric.removeAll(new MetricBatch());
+		for (int i = 0; i < 10; i ++) {
+			Metric.put(NAME, i * 1.5, "path", "/a?b=c&d", "tag", "中文 " + i % 2);
+			Metric.put(SKETCHED, i);
+		}
+		MetricBatch batch = new MetricBatch();
+		Metric.removeAll(batch);
+		return batch;
+	}
+
+	// Text rows are read back by the collectors' parser
+	private static void assertRow(MetricBatch batch, int i, MetricParser parser) {
+		assertEquals(batch.getName(i), parser.getString(0));
+		assertEquals(100, parser.getLong(1, 0));
+		assertEquals(batch.getCount(i), parser.getLong(2, 0));
+		assertEquals(batch.getSum(i), parser.getDouble(3), 0);
+		assertEquals(batch.getMax(i), parser.getDouble(4), 0);
+		assertEquals(batch.getMin(i), parser.getDouble(5), 0);
+		assertEquals(batch.getSqr(i), parser.getDouble(6), 0);
+		MetricSketch sketch = batch.getSketch(i);
+		if (sketch == null) {
+			assertNull(parser.getSketch(7));
+		} else {
+			assertArrayEquals(sketch.toArray(), parser.getSketch(7).toArray());
+		}
+		Map<String, String> tagMap = new HashMap<>();
+		for (int j = 0; j < parser.getTagCount(); j ++) {
+			tagMap.put(parser.getTagKey(j), parser.getTagValue(j));
+		}
+		assertEquals(batch.getTagMap(i), tagMap);
+	}
+
+	@Test
+	public void testText() {
+		MetricBatch batch = batch();
+		MetricEncoder encoder = new MetricEncoder(false);
+		MetricParser parser = new MetricParser();
+		// Twice, the second time with tags encoded and attached to the keys
+		for (int k = 0; k < 2; k ++) {
+			encoder.reset();
+			for (int i = 0; i < batch.size(); i ++) {
+				int len = encoder.encode(batch, i, 100);
+				byte[] b = encoder.array();
+				assertFalse(MetricDecoder.isBinary(b, 0, len));
+				assertEquals('\n', b[len - 1]);
+				// ASCII only
+				for (int j = 0; j < len; j ++) {
+					assertTrue(b[j] > 0);
+				}
+				parser.reset(b, 0, len);
+				assertTrue(parser.next());
+				assertRow(batch, i, parser);
+				assertFalse(parser.next());
+			}
+		}
+	}
+
+	@Test
+	public void testReuse() {
+		MetricBatch batch = batch();
+		MetricEncoder encoder = new MetricEncoder(true);
+		encoder.reset();
+		int len = encoder.encode(batch, 0, 100);
+		byte[] first = Arrays.copyOf(encoder.array(), len);
+		assertTrue(MetricDecoder.isBinary(first, 0, len));
+		// Only the first row of a packet has the magic byte,
+		// and strings of earlier rows are referred by index
+		int len2 = encoder.encode(batch, 0, 100);
+		assertFalse(MetricDecoder.isBinary(encoder.array(), 0, len2));
+		assertTrue(len2 < len - 1);
+		// A new packet starts over
+		encoder.reset();
+		assertEquals(len, encoder.encode(batch, 0, 100));
+		assertArrayEquals(first, Arrays.copyOf(encoder.array(), len));
+	}
+}
\ No newline at end of file
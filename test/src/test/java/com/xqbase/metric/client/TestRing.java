@@ -0,0 +1,110 @@
+package com.xqbase.metric.client;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.net.InetSocketAddress;
+
+import org.junit.Test;
+
+public class TestRing {
+	private static final int KEYS = 100000;
+
+	private static InetSocketAddress[] addrs(int... ids) {
+		InetSocketAddress[] addrs = new InetSocketAddress[ids.length];
+		for (int i = 0; i < ids.length; i ++) {
+			addrs[i] = InetSocketAddress.createUnresolved("collector-" + ids[i], 5514);
+		}
+		return addrs;
+	}
+
+	private static int hash(int key) {
+		return MetricRing.mix(("metric.name?tag=" + key).hashCode());
+	}
+
+	// Collector id of each key, with one replica
+	private static int[] owners(int... ids) {
+		MetricRing ring = new MetricRing(addrs(ids));
+		int[] owners = new int[KEYS];
+		for (int key = 0; key < KEYS; key ++) {
+			int found = 0;
+			for (int node = 0; node < ids.length; node ++) {
+				if (ring.routes(hash(key), 1, node)) {
+					owners[key] = ids[node];
+					found ++;
+				}
+			}
+			assertEquals(1, found);
+		}
+		return owners;
+	}
+
+	@Test
+	public void testBalance() {
+		int[] counts = new int[4];
+		for (int owner : owners(0, 1, 2, 3)) {
+			counts[owner] ++;
+		}
+		for (int count : counts) {
+			// 25% each, within a few percent for 160 virtual nodes
+			assertEquals(KEYS / 4, count, KEYS * 0.05);
+		}
+	}
+
+	@Test
+	public void testAdd() {
+		int[] before = owners(0, 1, 2, 3);
+		int[] after = owners(0, 1, 2, 3, 4);
+		int moved = 0;
+		for (int key = 0; key < KEYS; key ++) {
+			if (before[key] != after[key]) {
+				// Only to the new collector
+				assertEquals(4, after[key]);
+				moved ++;
+			}
+		}
+		// About 1/5 of keys, rather than most of them by modulo
+		assertEquals(KEYS / 5, moved, KEYS * 0.05);
+	}
+
+	@Test
+	public void testRemove() {
+		int[] before = owners(0, 1, 2, 3, 4);
+		int[] after = owners(0, 1, 3, 4);
+		int moved = 0;
+		for (int key = 0; key < KEYS; key ++) {
+			if (before[key] != after[key]) {
+				// Only from the removed collector
+				assertEquals(2, before[key]);
+				moved ++;
+			}
+		}
+		assertEquals(KEYS / 5, moved, KEYS * 0.05);
+	}
+
+	@Test
+	public void testReplicas() {
+		MetricRing ring = new MetricRing(addrs(0, 1, 2, 3));
+		for (int key = 0; key < KEYS; key += 7) {
+			int found = 0;
+			for (int node = 0; node < 4; node ++) {
+				if (ring.routes(hash(key), 2, node)) {
+					found ++;
+				}
+			}
+			assertEquals(2, found);
+			// The first replica is the owner
+			int owner = -1;
+			for (int node = 0; node < 4; node ++) {
+				if (ring.routes(hash(key), 1, node)) {
+					owner = node;
+				}
+			}
+			assertTrue(ring.routes(hash(key), 2, owner));
+		}
+		// More replicas than collectors
+		for (int node = 0; node < 4; node ++) {
+			assertTrue(ring.routes(hash(0), 5, node));
+		}
+	}
+}
\ No newline at end of file
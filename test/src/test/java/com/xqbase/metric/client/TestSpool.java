@@ -0,0 +1,147 @@
+package com.xqbase.metric.client;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class TestSpool {
+	// 16-byte header and 240 bytes of records
+	private static final int CAPACITY = 256;
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	private static byte[] packet(int i) {
+		byte[] b = new byte[10 + i % 20];
+		for (int j = 0; j < b.length; j ++) {
+			b[j] = (byte) (i + j);
+		}
+		return b;
+	}
+
+	// Minutes of all records, checking packets against "packet(minute)"
+	private static List<Integer> read(MetricSpool spool) {
+		List<Integer> minutes = new ArrayList<>();
+		long pos = spool.head();
+		while (pos < spool.tail()) {
+			int len = spool.length(pos);
+			assertTrue(len > 0);
+			int minute = spool.minute(pos);
+			byte[] b = new byte[len];
+			spool.read(pos, b, len);
+			assertArrayEquals(packet(minute), b);
+			minutes.add(Integer.valueOf(minute));
+			pos = spool.next(pos);
+		}
+		assertEquals(spool.tail(), pos);
+		return minutes;
+	}
+
+	@Test
+	public void testWrapAround() throws IOException {
+		File f = folder.newFile();
+		MetricSpool spool = new MetricSpool(f, CAPACITY);
+		assertTrue(spool.isEmpty());
+		for (int i = 0; i < 100; i ++) {
+			byte[] b = packet(i);
+			assertTrue(spool.add(i, b, 0, b.length));
+			assertTrue(spool.depth() <= CAPACITY - 16);
+			List<Integer> minutes = read(spool);
+			// Oldest records are dropped, the newest ones are kept in order
+			assertEquals(i, minutes.get(minutes.size() - 1).intValue());
+			for (int j = 1; j < minutes.size(); j ++) {
+				assertEquals(minutes.get(j - 1).intValue() + 1, minutes.get(j).intValue());
+			}
+		}
+		// Logical positions keep growing, so records have crossed the end many times
+		assertTrue(spool.tail() > CAPACITY * 10);
+		List<Integer> minutes = read(spool);
+		spool.close();
+
+		// Records are kept after reopened
+		spool = new MetricSpool(f, CAPACITY * 2);
+		assertEquals(CAPACITY, f.length());
+		assertEquals(minutes, read(spool));
+		spool.removeTo(spool.next(spool.head()));
+		assertEquals(minutes.subList(1, minutes.size()), read(spool));
+		spool.clear();
+		assertTrue(spool.isEmpty());
+		spool.close();
+	}
+
+	@Test
+	public void testTooLarge() throws IOException {
+		MetricSpool spool = new MetricSpool(folder.newFile(), CAPACITY);
+		byte[] b = packet(0);
+		assertTrue(spool.add(0, b, 0, b.length));
+		assertFalse(spool.add(1, new byte[CAPACITY], 0, CAPACITY));
+		// Existing records are not dropped for it
+		assertEquals(1, read(spool).size());
+		spool.close();
+	}
+
+	@Test
+	public void testCorruptedHeader() throws IOException {
+		File f = folder.newFile();
+		MetricSpool spool = new MetricSpool(f, CAPACITY);
+		for (int i = 0; i < 5; i ++) {
+			byte[] b = packet(i);
+			spool.add(i, b, 0, b.length);
+		}
+		spool.close();
+		try (RandomAccessFile raf = new RandomAccessFile(f, "rw")) {
+			// Tail before head
+			raf.writeLong(1000);
+			raf.writeLong(10);
+		}
+		spool = new MetricSpool(f, CAPACITY);
+		assertTrue(spool.isEmpty());
+		byte[] b = packet(7);
+		assertTrue(spool.add(7, b, 0, b.length));
+		assertEquals(1, read(spool).size());
+		spool.close();
+
+		try (RandomAccessFile raf = new RandomAccessFile(f, "rw")) {
+			// More than the spool can hold
+			raf.writeLong(0);
+			raf.writeLong(CAPACITY * 2);
+		}
+		spool = new MetricSpool(f, CAPACITY);
+		assertTrue(spool.isEmpty());
+		spool.close();
+	}
+
+	@Test
+	public void testCorruptedRecord() throws IOException {
+		File f = folder.newFile();
+		MetricSpool spool = new MetricSpool(f, CAPACITY);
+		byte[] b = packet(0);
+		spool.add(0, b, 0, b.length);
+		b = packet(1);
+		spool.add(1, b, 0, b.length);
+		spool.close();
+		try (RandomAccessFile raf = new RandomAccessFile(f, "rw")) {
+			// Length of the first record beyond the tail
+			raf.seek(16);
+			raf.writeInt(CAPACITY);
+		}
+		spool = new MetricSpool(f, CAPACITY);
+		assertEquals(-1, spool.length(spool.head()));
+		// Dropped as a whole when the space is needed
+		b = new byte[CAPACITY - 16 - 8];
+		assertTrue(spool.add(2, b, 0, b.length));
+		assertEquals(b.length, spool.length(spool.head()));
+		spool.close();
+	}
+}
\ No newline at end of file
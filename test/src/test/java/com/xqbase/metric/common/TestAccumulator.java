@@ -0,0 +1,91 @@
+package com.xqbase.metric.common;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.junit.Test;
+
+public class TestAccumulator {
+	private static final int THREADS = 8;
+	private static final int PUTS = 200000;
+
+	private long count = 0, sketchCount = 0;
+	private double sum = 0;
+
+	// Only names of this test, metrics are global in the JVM
+	private void removeAll(MetricBatch batch, String name) {
+		Metric.removeAll(batch);
+		for (int i = 0; i < batch.size(); i ++) {
+			if (batch.getName(i).equals(name)) {
+				count += batch.getCount(i);
+				sum += batch.getSum(i);
+				MetricSketch sketch = batch.getSketch(i);
+				if (sketch != null) {
+					sketchCount += sketch.getCount();
+				}
+			}
+		}
+	}
+
+	@Test
+	public void testFlip() throws InterruptedException {
+		String name = "test.accumulator.flip";
+		Metric.enableSketch(name);
+		AtomicBoolean done = new AtomicBoolean(false);
+		List<Thread> threads = new ArrayList<>();
+		for (int i = 0; i < THREADS; i ++) {
+			String tag = "" + (i % 2);
+			Thread thread = new Thread(() -> {
+				for (int j = 0; j < PUTS; j ++) {
+					Metric.put(name, 1, "tag", tag);
+				}
+			});
+			thread.start();
+			threads.add(thread);
+		}
+		// Flip and drain while writing
+		MetricBatch batch = new MetricBatch();
+		Thread remover = new Thread(() -> {
+			while (!done.get()) {
+				removeAll(batch, name);
+			}
+		});
+		remover.start();
+		for (Thread thread : threads) {
+			thread.join();
+		}
+		done.set(true);
+		remover.join();
+		// Drain both banks
+		removeAll(batch, name);
+		removeAll(batch, name);
+		assertEquals((long) THREADS * PUTS, count);
+		assertEquals(THREADS * PUTS, sum, 0);
+		assertEquals((long) THREADS * PUTS, sketchCount);
+	}
+
+	@Test
+	public void testRetire() {
+		String name = "test.accumulator.retire";
+		MetricBatch batch = new MetricBatch();
+		Metric.put(name, 1);
+		removeAll(batch, name);
+		assertEquals(1, count);
+		// Idle for a whole interval, then removed and not reported
+		removeAll(batch, name);
+		removeAll(batch, name);
+		assertEquals(1, count);
+		for (int i = 0; i < batch.size(); i ++) {
+			assertFalse(batch.getName(i).equals(name));
+		}
+		// A new accumulator after retired
+		Metric.put(name, 2);
+		removeAll(batch, name);
+		assertEquals(2, count);
+		assertEquals(3, sum, 0);
+	}
+}
\ No newline at end of file
@@ -0,0 +1,173 @@
+package com.xqbase.metric.common;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.io.UnsupportedEncodingException;
+import java.net.URLDecoder;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import org.junit.Test;
+
+public class TestParser {
+	private static String decode(String s) throws UnsupportedEncodingException {
+		return URLDecoder.decode(s, "UTF-8");
+	}
+
+	private static String encode(String s) throws UnsupportedEncodingException {
+		return URLEncoder.encode(s, "UTF-8");
+	}
+
+	private static MetricParser parser(String s) {
+		MetricParser parser = new MetricParser(new MetricStrings(1024));
+		byte[] b = s.getBytes(StandardCharsets.UTF_8);
+		parser.reset(b, 0, b.length);
+		return parser;
+	}
+
+	// Fields and tags as the collectors did with split/substring/decode
+	private static void assertLegacy(String line, MetricParser parser)
+			throws UnsupportedEncodingException {
+		String[] paths;
+		Map<String, String> tags = new HashMap<>();
+		int i = line.indexOf('?');
+		if (i < 0) {
+			paths = line.split("/");
+		} else {
+			paths = line.substring(0, i).split("/");
+			for (String tag : line.substring(i + 1).split("&")) {
+				i = tag.indexOf('=');
+				if (i > 0) {
+					tags.put(decode(tag.substring(0, i)), decode(tag.substring(i + 1)));
+				}
+			}
+		}
+		assertEquals(paths.length, parser.getFieldCount());
+		for (int j = 0; j < paths.length; j ++) {
+			assertEquals(decode(paths[j]), parser.getString(j));
+		}
+		Map<String, String> tags_ = new HashMap<>();
+		for (int j = 0; j < parser.getTagCount(); j ++) {
+			tags_.put(parser.getTagKey(j), parser.getTagValue(j));
+		}
+		assertEquals(tags, tags_);
+	}
+
+	@Test
+	public void testLegacy() throws UnsupportedEncodingException {
+		Random random = new Random(0);
+		String[] words = {"a", "b c", "/", "?", "&", "=", "%", "+", "中文", "😀", "a%b", ""};
+		List<String> lines = new ArrayList<>();
+		for (int i = 0; i < 2000; i ++) {
+			StringBuilder sb = new StringBuilder();
+			sb.append(encode(words[random.nextInt(words.length - 1)] + i)).
+					append('/').append(random.nextInt(1000)).
+					append('/').append(random.nextDouble() * 1000);
+			int tags = random.nextInt(4);
+			for (int j = 0; j < tags; j ++) {
+				sb.append(j == 0 ? '?' : '&').
+						append(encode(words[random.nextInt(words.length - 1)] + j)).
+						append('=').append(encode(words[random.nextInt(words.length)]));
+			}
+			if (random.nextInt(4) == 0) {
+				// A tag without key or '=' is skipped
+				sb.append(tags == 0 ? '?' : '&').append(random.nextBoolean() ? "=x" : "x");
+			}
+			lines.add(sb.toString());
+		}
+		// Both line endings, and empty lines are skipped
+		MetricParser parser = parser(String.join("\r\n\n", lines) + "\n");
+		for (String line : lines) {
+			assertTrue(parser.next());
+			assertEquals(line, parser.getLine());
+			assertLegacy(line, parser);
+		}
+		assertFalse(parser.next());
+	}
+
+	@Test
+	public void testDecode() {
+		MetricParser parser = parser("a+b%2Fc%E4%B8%AD/%zz%4/%41%4a%2");
+		assertTrue(parser.next());
+		assertEquals("a b/c中", parser.getString(0));
+		// A malformed '%' is kept rather than failing as "URLDecoder"
+		assertEquals("%zz%4", parser.getString(1));
+		assertEquals("AJ%2", parser.getString(2));
+		// Not decoded
+		assertEquals("%zz%4/%41%4a%2", parser.getLine(1));
+	}
+
+	@Test
+	public void testIntern() {
+		MetricParser parser = parser("name?k=v\nname?k=v&k2=v\n");
+		assertTrue(parser.next());
+		String name = parser.getString(0);
+		String value = parser.getTagValue(0);
+		assertTrue(parser.next());
+		assertSame(name, parser.getString(0));
+		assertSame(value, parser.getTagValue(0));
+		assertSame(value, parser.getTagValue(1));
+	}
+
+	@Test
+	public void testNumbers() {
+		Random random = new Random(0);
+		List<String> numbers = new ArrayList<>();
+		for (int i = 0; i < 10000; i ++) {
+			numbers.add("" + random.nextDouble() * Math.pow(10, random.nextInt(40) - 20));
+			numbers.add("" + (random.nextLong() >> random.nextInt(64)));
+			numbers.add("" + random.nextInt(100000) / 100d);
+		}
+		String[] special = {"0", "-0.0", "1e22", "1e23", "1.5E-7", "123456789012345678901",
+				"NaN", "Infinity", "-Infinity", "4.9E-324", "1.7976931348623157E308",
+				"0.1", "00012.5000", ".5", "5.", "1e", "1e+", "-", "abc", "1x", "1e1000"};
+		for (String s : special) {
+			numbers.add(s);
+		}
+		MetricParser parser = parser(String.join("\n", numbers));
+		for (String s : numbers) {
+			assertTrue(parser.next());
+			double expected;
+			try {
+				expected = Double.parseDouble(s);
+			} catch (NumberFormatException e) {
+				expected = Double.NaN;
+			}
+			// Bitwise equal, not within a delta
+			assertEquals(s, Double.doubleToLongBits(expected),
+					Double.doubleToLongBits(parser.getDouble(0)));
+			long expectedLong;
+			try {
+				expectedLong = Long.parseLong(s);
+			} catch (NumberFormatException e) {
+				expectedLong = -1;
+			}
+			assertEquals(s, expectedLong, parser.getLong(0, -1));
+		}
+	}
+
+	@Test
+	public void testSketch() {
+		MetricParser parser = parser("1/2,-3,4,5/x,1/1/0,1,-1,1/");
+		assertTrue(parser.next());
+		assertNull(parser.getSketch(0));
+		MetricSketch sketch = parser.getSketch(1);
+		assertEquals(11, sketch.getCount());
+		assertNull(parser.getSketch(2));
+		assertNull(parser.getSketch(3));
+		// Negative counts are skipped
+		assertEquals(1, parser.getSketch(4).getCount());
+		// Empty and missing
+		assertNull(parser.getSketch(5));
+		assertNull(parser.getSketch(6));
+	}
+}
\ No newline at end of file
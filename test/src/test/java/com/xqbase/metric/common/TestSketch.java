@@ -0,0 +1,132 @@
+package com.xqbase.metric.common;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.Test;
+
+public class TestSketch {
+	// Buckets are 6% wide, so a midpoint is within 3%
+	private static final double ERROR = 0.03;
+
+	private static void assertQuantile(double expected, double actual) {
+		assertEquals(expected, actual, expected * ERROR);
+	}
+
+	@Test
+	public void testQuantiles() {
+		MetricSketch sketch = new MetricSketch();
+		// Within 128 buckets, so nothing is collapsed
+		for (int i = 1; i <= 1000; i ++) {
+			sketch.add(i);
+		}
+		assertEquals(1000, sketch.getCount());
+		assertQuantile(500, sketch.getQuantile(.5));
+		assertQuantile(900, sketch.getQuantile(.9));
+		assertQuantile(990, sketch.getQuantile(.99));
+		assertQuantile(1000, sketch.getQuantile(1));
+		assertQuantile(1, sketch.getQuantile(0));
+	}
+
+	@Test
+	public void testRandomQuantiles() {
+		Random random = new Random(0);
+		double[] values = new double[100000];
+		MetricSketch sketch = new MetricSketch();
+		for (int i = 0; i < values.length; i ++) {
+			// Log-normal, like response times
+			values[i] = Math.exp(random.nextGaussian() + 3);
+			sketch.add(values[i]);
+		}
+		Arrays.sort(values);
+		for (double q : new double[] {.5, .9, .95, .99}) {
+			assertQuantile(values[(int) (q * (values.length - 1))], sketch.getQuantile(q));
+		}
+	}
+
+	@Test
+	public void testMerge() {
+		Random random = new Random(0);
+		MetricSketch all = new MetricSketch();
+		MetricSketch even = new MetricSketch();
+		MetricSketch odd = new MetricSketch();
+		for (int i = 0; i < 10000; i ++) {
+			double d = random.nextDouble() * 1000;
+			all.add(d);
+			(i % 2 == 0 ? even : odd).add(d);
+		}
+		even.add(odd);
+		assertArrayEquals(all.toArray(), even.toArray());
+		assertEquals(all.getQuantile(.99), even.getQuantile(.99), 0);
+	}
+
+	@Test
+	public void testCollapse() {
+		MetricSketch sketch = new MetricSketch();
+		// Far more than 128 buckets apart, lowest ones are collapsed
+		for (int i = 0; i < 100; i ++) {
+			sketch.add(1e-6);
+			sketch.add(1e6);
+		}
+		assertEquals(200, sketch.getCount());
+		assertQuantile(1e6, sketch.getQuantile(.99));
+		assertTrue(sketch.toArray().length <= 130);
+	}
+
+	@Test
+	public void testNegative() {
+		MetricSketch sketch = new MetricSketch();
+		for (int i = 0; i < 100; i ++) {
+			sketch.add(-i - 1);
+		}
+		sketch.add(Double.NaN);
+		sketch.add(0);
+		// Counted as 0
+		assertEquals(102, sketch.getCount());
+		assertEquals(0, sketch.getQuantile(.01), 0);
+		assertEquals(0, sketch.getQuantile(.99), 0);
+		assertArrayEquals(new long[] {102, 0}, sketch.toArray());
+	}
+
+	@Test
+	public void testParse() {
+		MetricSketch sketch = new MetricSketch();
+		for (int i = 0; i < 1000; i ++) {
+			sketch.add(i / 10d);
+		}
+		MetricSketch parsed = MetricSketch.parse(sketch.toString());
+		assertArrayEquals(sketch.toArray(), parsed.toArray());
+		assertArrayEquals(sketch.toArray(), MetricSketch.valueOf(sketch.toArray()).toArray());
+		assertNull(MetricSketch.parse(""));
+		assertNull(MetricSketch.parse("1,x,2"));
+		assertNull(MetricSketch.parse("1"));
+		// Bad indexes and counts are clamped rather than overflowing
+		parsed = MetricSketch.parse("-5," + Long.MAX_VALUE + ",1,-1,2");
+		assertEquals(3, parsed.getCount());
+		assertTrue(parsed.getQuantile(1) > 0);
+	}
+
+	@Test
+	public void testValue() {
+		MetricValue value = new MetricValue(3, 6, 3, 1, 14);
+		assertTrue(Double.isNaN(value.getQuantile(.5)));
+		MetricSketch sketch = new MetricSketch();
+		sketch.add(1);
+		sketch.add(2);
+		sketch.add(3);
+		value = new MetricValue(3, 6, 3, 1, 14, sketch);
+		assertQuantile(2, value.getQuantile(.5));
+		assertQuantile(3, value.getQuantile(1));
+		// Kept within min and max
+		assertEquals(1, value.getQuantile(0), 0);
+		MetricValue merged = new MetricValue(3, 6, 3, 1, 14);
+		merged.add(value);
+		assertEquals(6, merged.getCount());
+		assertEquals(3, merged.sketch().getCount());
+	}
+}
\ No newline at end of file